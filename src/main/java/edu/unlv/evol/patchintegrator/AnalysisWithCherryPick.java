@@ -1,34 +1,58 @@
 package edu.unlv.evol.patchintegrator;
 
 import edu.unlv.evol.patchintegrator.database.*;
+import edu.unlv.evol.patchintegrator.utils.CherryPickEvaluator;
+import edu.unlv.evol.patchintegrator.utils.CloneManager;
+import edu.unlv.evol.patchintegrator.utils.CommitMetadataCache;
 import edu.unlv.evol.patchintegrator.utils.GitHubUtils;
 import edu.unlv.evol.patchintegrator.utils.GitUtils;
-import edu.unlv.evol.patchintegrator.utils.RefactoringMinerUtils;
+import edu.unlv.evol.patchintegrator.utils.MinedRefactoring;
+import edu.unlv.evol.patchintegrator.utils.PullRequestCache;
+import edu.unlv.evol.patchintegrator.utils.PullRequestResolver;
+import edu.unlv.evol.patchintegrator.utils.RefactoringMinerCache;
+import edu.unlv.evol.patchintegrator.utils.RefactoringMinerPool;
 import edu.unlv.evol.patchintegrator.utils.Utils;
-import gr.uom.java.xmi.diff.CodeRange;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.JGitInternalException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.transport.URIish;
 import org.javalite.activejdbc.Base;
-import org.refactoringminer.api.Refactoring;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AnalysisWithCherryPick {
+    private static final String PULL_REQUESTS_DIR = "pull-requests";
+    private static final String REFMINER_CACHE_DIR = "refminer-cache";
+    private static final int REFMINER_QUEUE_CAPACITY = 1000;
+    private static final int REFMINER_BATCH_SIZE = 100;
+    private static final int REFMINER_PENDING_COMMITS = 200;
+
     private final String clonePath;
     private String sourceURL; //e.g Apache Kafka
     private String forkURL; // e.g linkedIn
     private int [] missedPatches; //11012
     private final String repoListFile;
+    private final CloneManager cloneManager;
+    private final CloneManager.FetchMode fetchMode;
+    private final int patchThreads;
+    private final int refMinerThreads;
+    private final String refMinerHeap;
+    private final RefactoringMinerPool.Scope refMinerScope;
+    private final int dbWriters;
+    private RefactoringMinerPool refactoringMinerPool;
+    private RefactoringMinerCache refactoringMinerCache;
+    private WriteBehindQueue writeBehindQueue;
 
     // --- added ---
 //    public AnalysisWithCherryPick(String clonePath, String sourceURL, String forkURL, int [] missedPatches){
@@ -38,15 +62,35 @@ public class AnalysisWithCherryPick {
 //        this.missedPatches = missedPatches;
 //    }
 
-    public AnalysisWithCherryPick(String repoListFile, String clonePath){
+    public AnalysisWithCherryPick(String repoListFile, String clonePath, CloneManager.FetchMode fetchMode,
+                                  int patchThreads, int refMinerThreads, String refMinerHeap,
+                                  RefactoringMinerPool.Scope refMinerScope, int dbWriters){
         this.repoListFile = repoListFile;
         this.clonePath = clonePath;
+        this.cloneManager = new CloneManager(clonePath);
+        this.fetchMode = fetchMode;
+        this.patchThreads = patchThreads;
+        this.refMinerThreads = refMinerThreads;
+        this.refMinerHeap = refMinerHeap;
+        this.refMinerScope = refMinerScope;
+        this.dbWriters = dbWriters;
     }
 
     public void start(int parallelism) {
-        try {
+        // The RefMiner workers and the database writers are shared by all projects, so they are sized
+        // independently of the parallelism.
+        refactoringMinerCache = new RefactoringMinerCache(new File(clonePath, REFMINER_CACHE_DIR));
+        try (RefactoringMinerPool refactoringMinerPool = new RefactoringMinerPool(refMinerThreads,
+                refMinerHeap, refactoringMinerCache)) {
+            this.refactoringMinerPool = refactoringMinerPool;
             DatabaseUtils.createDatabase();
-            runParallel(parallelism);
+            try (WriteBehindQueue writeBehindQueue = new WriteBehindQueue(dbWriters)) {
+                this.writeBehindQueue = writeBehindQueue;
+                runParallel(parallelism);
+            }
+            Utils.log(null, GitHubUtils.getRequestStatistics());
+            Utils.log(null, refactoringMinerCache.toString());
+            Utils.log(null, writeBehindQueue.toString());
         } catch (Throwable e) {
             Utils.log(null, e);
             e.printStackTrace();
@@ -107,10 +151,18 @@ public class AnalysisWithCherryPick {
             return;
         }
         try {
+            Map<Integer, String> patchCommits;
             removeProject(forkName);
-            cloneProject(forkURL);
-            addRemoteRepo(sourceURL, forkURL);
-            analyzeProject(project, missedPatches);
+            if (fetchMode == CloneManager.FetchMode.PATCHES) {
+                patchCommits = getPatchCommits(sourceURL, missedPatches);
+                clonePatches(sourceURL, forkURL, patchCommits);
+            } else {
+                // The source mirror is up to date after the clone, so the patches can be resolved from it.
+                cloneProject(sourceURL, forkURL, missedPatches);
+                addRemoteRepo(sourceURL, forkURL);
+                patchCommits = getPatchCommits(sourceURL, missedPatches);
+            }
+            analyzeProject(project, patchCommits);
             project.setDone();
             project.saveIt();
             Utils.log(forkName, "Finished the analysis, removing the repository...");
@@ -123,25 +175,105 @@ public class AnalysisWithCherryPick {
     }
 
     /**
-     * Clones the target variant repository to a local directory
-     * specified by the clonePath variable
+     * Resolves the merge commit of every missed patch (pull request) of the source variant. Merged
+     * pull requests are kept in an on-disk cache next to the mirrors, the pull requests that are not
+     * cached yet are resolved from the source mirror if there is one, and only the remaining ones
+     * are requested from GitHub, all in one batch.
+     * @param sourceURL URL of the source variant
+     * @param missedPatches pull request numbers of the missed patches
+     * @return merge commit ids keyed by patch number, in the order of the missed patches
+     * @throws IOException thrown when GitHub cannot be reached
+     * @see PullRequestCache
+     * @see PullRequestResolver
+     */
+    private Map<Integer, String> getPatchCommits(String sourceURL, int [] missedPatches) throws IOException {
+        PullRequestCache pullRequestCache = new PullRequestCache(new File(clonePath, PULL_REQUESTS_DIR), sourceURL);
+        Map<Integer, String> patchCommits = new LinkedHashMap<>();
+        List<Integer> uncachedPatches = new ArrayList<>();
+        for (int patch : missedPatches) {
+            GitHubUtils.PullRequestInfo pullRequest = pullRequestCache.get(patch);
+            patchCommits.put(patch, pullRequest == null ? null : pullRequest.mergeCommitSha);
+            if (pullRequest == null) uncachedPatches.add(patch);
+        }
+        resolvePatchCommitsLocally(sourceURL, uncachedPatches, patchCommits);
+        if (uncachedPatches.isEmpty()) return patchCommits;
+
+        List<GitHubUtils.PullRequestInfo> pullRequests = new GitHubUtils().getPullRequestInfoList(sourceURL,
+                uncachedPatches.stream().mapToInt(Integer::intValue).toArray());
+        for (GitHubUtils.PullRequestInfo pullRequest : pullRequests) {
+            if (pullRequest == null) continue;
+            patchCommits.put(pullRequest.number, pullRequest.mergeCommitSha);
+            pullRequestCache.put(pullRequest);
+        }
+        pullRequestCache.save();
+        return patchCommits;
+    }
+
+    /**
+     * Resolves patches from the mirror of the source variant, without calling GitHub
+     * @param sourceURL URL of the source variant
+     * @param patches pull request numbers to resolve, the resolved ones are removed
+     * @param patchCommits stores the merge commit ids of the resolved patches
+     */
+    private void resolvePatchCommitsLocally(String sourceURL, List<Integer> patches, Map<Integer, String> patchCommits) {
+        File sourceMirror = cloneManager.getMirrorDir(sourceURL);
+        if (patches.isEmpty() || !sourceMirror.isDirectory()) return;
+
+        try (Repository repository = new FileRepositoryBuilder().setGitDir(sourceMirror).setMustExist(true).build()) {
+            Map<Integer, String> resolved = new PullRequestResolver(repository).resolve(
+                    patches.stream().mapToInt(Integer::intValue).toArray());
+            patchCommits.putAll(resolved);
+            patches.removeAll(resolved.keySet());
+            Utils.log(Utils.getProjectName(sourceURL), String.format("Resolved %d patches from the local mirror",
+                    resolved.size()));
+        } catch (IOException e) {
+            Utils.log(Utils.getProjectName(sourceURL), e);
+        }
+    }
+
+    /**
+     * Creates a working tree of the target variant repository in a local directory
+     * specified by the clonePath variable. Both variants are fetched into their local
+     * mirrors first, so only the commits added since the last run are downloaded.
+     * @param sourceURL URL of the source variant
      * @param forkURL URL of the target (divergent fork) variant
+     * @param missedPatches pull request numbers of the missed patches, their head refs are mirrored
      * @throws GitAPIException GitAPIException
-     * @see GitAPIException
+     * @throws IOException thrown when the working tree cannot be created
+     * @throws URISyntaxException thrown when the repository URL is invalid
+     * @see CloneManager#checkout(String, String, File, int...)
      */
-    private void cloneProject(String forkURL) throws GitAPIException{
+    private void cloneProject(String sourceURL, String forkURL, int [] missedPatches) throws GitAPIException,
+            IOException, URISyntaxException {
         String forkName = Utils.getProjectName(forkURL);
         Utils.log(forkName, String.format("Cloning %s...", forkName));
-        Git.cloneRepository()
-                .setURI(forkURL)
-                .setDirectory(new File(clonePath, forkName))
-                .call();
+        cloneManager.checkout(forkURL, sourceURL, new File(clonePath, forkName), missedPatches);
+    }
 
+    /**
+     * Creates a working tree of the target variant repository that only contains the merge
+     * commits of the missed patches from the source variant, instead of its whole history
+     * @param sourceURL URL of the source variant
+     * @param forkURL URL of the target (divergent fork) variant
+     * @param patchCommits merge commit ids keyed by patch number
+     * @throws GitAPIException GitAPIException
+     * @throws IOException thrown when the working tree cannot be created
+     * @throws URISyntaxException thrown when a repository URL is invalid
+     * @see CloneManager#checkoutPatches(String, String, Map, File)
+     */
+    private void clonePatches(String sourceURL, String forkURL, Map<Integer, String> patchCommits)
+            throws GitAPIException, IOException, URISyntaxException {
+        String forkName = Utils.getProjectName(forkURL);
+        Utils.log(forkName, String.format("Cloning %s with %d patch(es) of %s...", forkName, patchCommits.size(),
+                Utils.getProjectName(sourceURL)));
+        cloneManager.checkoutPatches(forkURL, sourceURL, patchCommits, new File(clonePath, forkName));
     }
 
     /**
      * Adds remote (source variant) to the current cloned target variant.
-     * It also runs git fetch command to include the content of remote repo into target variant
+     * It also runs git fetch command to include the content of remote repo into target variant.
+     * The content is fetched from the local mirror of the source variant. The working tree already
+     * borrows the objects of that mirror, so the fetch only creates the remote-tracking refs.
      * @param sourceURL URL of the source variant
      * @param forkURL URL of the target (divergent fork) variant
      * @throws IOException
@@ -153,11 +285,12 @@ public class AnalysisWithCherryPick {
         File file = new File(String.format("%s/%s", clonePath, forkName)); //projects/projectname
         if(file.isDirectory()){
             // project was cloned successfully, we can now add remote
+            File sourceMirror = cloneManager.getMirrorDir(sourceURL);
             Git git = new Git(Git.open(file).getRepository());
             Utils.log(forkName, String.format("Adding remote (%s) repository to %s...", Utils.getProjectName(sourceURL), forkName));
             git.remoteAdd()
                     .setName(Utils.getProjectName(sourceURL))
-                    .setUri(new URIish(String.format("%s.git", sourceURL))) //project-url.git
+                    .setUri(new URIish(sourceMirror.getAbsolutePath())) //mirrors/owner/project-name.git
                     .call();
 
             Utils.log(forkName, String.format("Fetching remote (%s) content to %s...", Utils.getProjectName(sourceURL), forkName));
@@ -172,284 +305,554 @@ public class AnalysisWithCherryPick {
      * @param forkName specifies the project name
      */
     private void removeProject(String forkName) {
-        try {
-            Files.walk(Paths.get(new File(clonePath, forkName).getAbsolutePath()))
-                    .sorted(Comparator.reverseOrder())
-                    .map(Path::toFile)
-                    .forEach(File::delete);
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
-        }
+        Utils.deleteDirectory(new File(clonePath, forkName));
     }
 
     /**
      *
      * @param project cloned repo of the target variant
-     * @throws GitAPIException thrown when git operation fails
-     * @throws IOException thrown when project directory is not available
+     * @param patchCommits merge commit ids of the missed patches keyed by patch number
+     * @throws IOException thrown when project directory is not available, or when a commit of the histories
+     *                     was not mined or a result was not stored, so that the project is not marked done
      */
-    private void analyzeProject(Project project, int [] missedPatches) throws GitAPIException, IOException {
-        Utils.log(project.getName(), String.format("Analyzing %s's commits...", project.getName()));
-        analyzeProjectCommits(project, missedPatches);
-
-        Utils.log(project.getName(), String.format("Analyzing %s with RefMiner...", project.getName()));
-        analyzeProjectWithRefMiner(project);
+    private void analyzeProject(Project project, Map<Integer, String> patchCommits) throws IOException {
+        Utils.log(project.getName(), String.format("Analyzing %s's commits and mining them with RefMiner...",
+                project.getName()));
+        try (RefMinerStage refMinerStage = new RefMinerStage(project)) {
+            analyzeProjectCommits(project, patchCommits, refMinerStage);
+
+            Utils.log(project.getName(), "Waiting for RefMiner to finish the commits of the histories...");
+            refMinerStage.finish();
+
+            // The project is only marked done after all of its results are stored.
+            Utils.log(project.getName(), "Waiting for the results to be written to the database...");
+            int failedUnits = writeBehindQueue.flush(project.getName());
+            if (failedUnits > 0) {
+                throw new IOException(String.format("%d result(s) could not be written to the database", failedUnits));
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("The commits of the histories were not mined", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while analyzing the project", e);
+        }
     }
 
     /**
-     *
+     * Cherry-picks the merge commits of the missed patches onto the target variant. The cherry-picks
+     * are evaluated in memory and only read the object database, so several patches are evaluated at
+     * the same time on the same repository.
      * @param project cloned repo of the target variant
-     * @throws GitAPIException thrown when git operation fails
-     * @throws IOException thrown when project directory is not available
+     * @param patchCommits merge commit ids of the missed patches keyed by patch number
+     * @param refMinerStage receives the commits of the conflicting region histories
+     * @throws IOException thrown when project directory is not available or a patch could not be analyzed
+     * @throws InterruptedException thrown when the thread is interrupted while waiting for the patches
+     * @see CherryPickEvaluator
      */
-    private void analyzeProjectCommits(Project project, int [] missedPatches) throws GitAPIException, IOException {
-        GitUtils gitUtils = new GitUtils(new File(clonePath, project.getName()));
-
-        //---edit this line of code, get the mergeCommit of the patch/pull request---
-        for(int patch: missedPatches) {
-            Utils.log(project.getName(), String.format("Analyzing Patch......%d", patch));
-            Patch patchModel;
-            String prMergeCommit = new GitHubUtils().getMergeCommitSha(sourceURL, patch);
-            Iterable<RevCommit> mergeCommits = gitUtils.getMergeCommit(prMergeCommit);
+    private void analyzeProjectCommits(Project project, Map<Integer, String> patchCommits,
+                                       RefMinerStage refMinerStage) throws IOException, InterruptedException {
+        File projectDir = new File(clonePath, project.getName());
+        ExecutorService executor = Executors.newFixedThreadPool(patchThreads);
+        try (Git git = Git.open(projectDir);
+             GitUtils gitUtils = new GitUtils(git);
+             CommitMetadataCache commitMetadataCache = new CommitMetadataCache(git.getRepository())) {
             RevCommit mergeParent = gitUtils.getLastCommit();
 
-            int mergeCommitIndex = 0;
-
-            Map<String, String> conflictingJavaFiles = new HashMap<>();
-            for (RevCommit mergeCommit : mergeCommits) {
-                mergeCommitIndex++;
-                Utils.log(project.getName(), String.format("Analyzing commit %.7s... (%d/?)", mergeCommit.getName(),
-                        mergeCommitIndex));
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<Integer, String> patchCommit : patchCommits.entrySet()) {
+                int patch = patchCommit.getKey();
+                String prMergeCommit = patchCommit.getValue();
+                if (prMergeCommit == null) {
+                    Utils.log(project.getName(), String.format("Patch %d has no merge commit, skipping...", patch));
+                    continue;
+                }
 
-                // Skip this commit if it already exists in the database.
-                MergeCommit mergeCommitModel = MergeCommit.findFirst("commit_hash = ?", mergeCommit.getName());
-                if (mergeCommitModel != null) {
-                    if (mergeCommitModel.isDone()) {
-                        Utils.log(project.getName(), "Already analyzed, skipping...");
-                        continue;
-                    }
-                    // Will cascade to dependent records because of foreign key constraints
-                    mergeCommitModel.delete();
+                Iterable<RevCommit> mergeCommits = gitUtils.getMergeCommit(prMergeCommit);
+                if (!mergeCommits.iterator().hasNext()) {
+                    Utils.log(project.getName(), String.format("Merge commit %s of patch %d is not in the repository, skipping...",
+                            prMergeCommit, patch));
                 }
+                for (RevCommit mergeCommit : mergeCommits) {
+                    futures.add(executor.submit(() -> {
+                        Base.open();
+                        try {
+                            analyzePatchCommit(project, patch, mergeCommit, mergeParent, gitUtils, commitMetadataCache,
+                                    refMinerStage);
+                        } finally {
+                            Base.close();
+                        }
+                        return null;
+                    }));
+                }
+            }
 
+            // A failed patch does not stop the others, but the project is not marked done, so it is retried.
+            int failedPatches = 0;
+            for (Future<?> future : futures) {
                 try {
-                    conflictingJavaFiles.clear();
-                    boolean isConflicting = gitUtils.isConflictingCherryPick(mergeCommit, conflictingJavaFiles);
-
-                    patchModel = new Patch(patch, isConflicting, project);
-                    patchModel.saveIt();
-                    patchModel.setDone();
-
-                    mergeCommitModel = new MergeCommit(mergeCommit.getName(), isConflicting,
-                            mergeParent.getName(), mergeCommit.getName(), project, patchModel,
-                            mergeCommit.getAuthorIdent().getName(), mergeCommit.getAuthorIdent().getEmailAddress(),
-                            mergeCommit.getCommitTime());
-
-                    mergeCommitModel.saveIt();
-
-                    extractConflictingRegions(gitUtils, mergeCommitModel, conflictingJavaFiles);
-                    mergeCommitModel.setDone();
-                    mergeCommitModel.saveIt();
-
-                } catch (GitAPIException e) {
-                    Utils.log(project.getName(), e);
-                    e.printStackTrace();
+                    future.get();
+                } catch (ExecutionException e) {
+                    Utils.log(project.getName(), e.getCause());
+                    e.getCause().printStackTrace();
+                    failedPatches++;
+                } catch (InterruptedException e) {
+                    futures.forEach(pending -> pending.cancel(true));
+                    throw e;
                 }
-                conflictingJavaFiles.clear();
             }
+            if (failedPatches > 0) {
+                throw new IOException(String.format("%d patch(es) could not be analyzed", failedPatches));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Cherry-picks the merge commit of a patch in memory and stores the conflicts
+     * @param project cloned repo of the target variant
+     * @param patch patch (pull request) number
+     * @param mergeCommit merge commit of the patch
+     * @param mergeParent last commit of the target variant
+     * @param gitUtils repository in which the patch is cherry-picked, shared by all patch threads
+     * @param commitMetadataCache author and timestamp of the commits of the project
+     * @param refMinerStage receives the commits of the conflicting region histories
+     * @throws IOException thrown when the patch cannot be cherry-picked or the histories cannot be read
+     * @throws InterruptedException thrown when the thread is interrupted while waiting for the RefMiner stage
+     */
+    private void analyzePatchCommit(Project project, int patch, RevCommit mergeCommit, RevCommit mergeParent,
+                                    GitUtils gitUtils, CommitMetadataCache commitMetadataCache,
+                                    RefMinerStage refMinerStage) throws IOException, InterruptedException {
+        Utils.log(project.getName(), String.format("Analyzing Patch......%d (commit %.7s)", patch,
+                mergeCommit.getName()));
+
+        // Skip this commit if it already exists in the database.
+        MergeCommit mergeCommitModel = MergeCommit.findFirst("commit_hash = ?", mergeCommit.getName());
+        if (mergeCommitModel != null) {
+            if (mergeCommitModel.isDone()) {
+                Utils.log(project.getName(), "Already analyzed, skipping...");
+                refMinerStage.offerStored(mergeCommitModel);
+                return;
+            }
+            // Will cascade to dependent records because of foreign key constraints
+            mergeCommitModel.delete();
         }
+
+        Map<String, String> conflictingJavaFiles = new HashMap<>();
+        Map<String, List<CherryPickEvaluator.ConflictRegion>> conflictingRegions = new HashMap<>();
+        boolean isConflicting = gitUtils.isConflictingInCore(mergeParent, mergeCommit, conflictingJavaFiles,
+                conflictingRegions);
+
+        Patch patchModel = new Patch(patch, isConflicting, project);
+        patchModel.saveIt();
+        patchModel.setDone();
+
+        CommitMetadataCache.CommitMetadata mergeCommitMetadata = commitMetadataCache.get(mergeCommit);
+        mergeCommitModel = new MergeCommit(mergeCommit.getName(), isConflicting,
+                mergeParent.getName(), mergeCommit.getName(), project, patchModel,
+                mergeCommitMetadata.authorName, mergeCommitMetadata.authorEmail, mergeCommitMetadata.timestamp);
+
+        mergeCommitModel.saveIt();
+
+        // The conflicts of the merge commit are written behind the analysis in one transaction, together
+        // with its done flag.
+        BatchWriter batchWriter = new BatchWriter();
+        extractConflictingRegions(gitUtils, commitMetadataCache, mergeCommitModel, conflictingJavaFiles,
+                conflictingRegions, refMinerStage, batchWriter);
+        mergeCommitModel.setDone();
+        writeBehindQueue.submit(project.getName(), batchWriter.save(mergeCommitModel));
     }
 
     /**
      *
      * @param gitUtils instance of the GitUtils class
+     * @param commitMetadataCache author and timestamp of the commits of the project
      * @param mergeCommit instance of the MergeCommit class
      * @param conflictingJavaFiles stores conflicting java files in a map data structure
+     * @param conflictingRegions conflict regions of the conflicting java files, taken from the merge
+     * @param refMinerStage receives the commits of the conflicting region histories
+     * @param batchWriter collects the rows of the conflicts
+     * @throws InterruptedException thrown when the thread is interrupted while waiting for the RefMiner stage
      * @see GitHubUtils
      * @see MergeCommit
      */
-    private void extractConflictingRegions(GitUtils gitUtils, MergeCommit mergeCommit,
-                                           Map<String, String> conflictingJavaFiles) {
-        List<int[][]> conflictingRegions = new ArrayList<>();
-        List<GitUtils.CodeRegionChange> leftConflictingRegionHistory = new ArrayList<>();
-        List<GitUtils.CodeRegionChange> rightConflictingRegionHistory = new ArrayList<>();
+    private void extractConflictingRegions(GitUtils gitUtils, CommitMetadataCache commitMetadataCache,
+                                           MergeCommit mergeCommit,
+                                           Map<String, String> conflictingJavaFiles,
+                                           Map<String, List<CherryPickEvaluator.ConflictRegion>> conflictingRegions,
+                                           RefMinerStage refMinerStage, BatchWriter batchWriter)
+            throws InterruptedException {
+        List<List<GitUtils.CodeRegionChange>> leftConflictingRegionsHistory = new ArrayList<>();
+        List<List<GitUtils.CodeRegionChange>> rightConflictingRegionsHistory = new ArrayList<>();
 
         for (String path : conflictingJavaFiles.keySet()) {
             String conflictType = conflictingJavaFiles.get(path);
             ConflictingJavaFile conflictingJavaFile = new ConflictingJavaFile(path, conflictType, mergeCommit);
-            conflictingJavaFile.saveIt();
+            batchWriter.insert(conflictingJavaFile);
 
             if (conflictType.equalsIgnoreCase("content") ||
                     conflictType.equalsIgnoreCase("add/add")) {
-                String[] conflictingRegionPaths = new String[2];
-                conflictingRegions.clear();
-                gitUtils.getConflictingRegions(path, conflictingRegionPaths, conflictingRegions);
-
-                for (int[][] conflictingLines : conflictingRegions) {
+                List<ConflictingRegion> conflictingRegionModels = new ArrayList<>();
+                List<int[]> oursRanges = new ArrayList<>();
+                List<int[]> theirsRanges = new ArrayList<>();
+                // A file that one side renamed has another path on that side.
+                String oursPath = path, theirsPath = path;
+                for (CherryPickEvaluator.ConflictRegion region :
+                        conflictingRegions.getOrDefault(path, Collections.emptyList())) {
                     ConflictingRegion conflictingRegion = new ConflictingRegion(
-                            conflictingLines[0][0], conflictingLines[0][1], conflictingRegionPaths[0],
-                            conflictingLines[1][0], conflictingLines[1][1], conflictingRegionPaths[1],
+                            region.oursStartLine, region.oursLength, region.oursPath,
+                            region.theirsStartLine, region.theirsLength, region.theirsPath,
                             conflictingJavaFile);
-                    conflictingRegion.saveIt();
-
-                    leftConflictingRegionHistory.clear();
-                    rightConflictingRegionHistory.clear();
-                    gitUtils.getConflictingRegionHistory(mergeCommit.getParent1(), mergeCommit.getParent2(),
-                            path, conflictingLines[0], leftConflictingRegionHistory);
-                    gitUtils.getConflictingRegionHistory(mergeCommit.getParent2(), mergeCommit.getParent1(),
-                            path, conflictingLines[1], rightConflictingRegionHistory);
-
-                    leftConflictingRegionHistory.forEach(codeRegionChange -> {
-                        RevCommit commit = gitUtils.populateCommit(codeRegionChange.commitHash);
-                        String authorName = commit == null ? null : commit.getAuthorIdent().getName();
-                        String authorEmail = commit == null ? null : commit.getAuthorIdent().getEmailAddress();
-                        int timestamp = commit == null ? 0 : commit.getCommitTime();
-                        new ConflictingRegionHistory(
-                                codeRegionChange.commitHash, 1,
-                                codeRegionChange.oldStartLine, codeRegionChange.oldLength, codeRegionChange.oldPath,
-                                codeRegionChange.newStartLine, codeRegionChange.newLength, codeRegionChange.newPath,
-                                conflictingRegion, authorName, authorEmail, timestamp).saveIt();
-                    });
-                    rightConflictingRegionHistory.forEach(codeRegionChange -> {
-                        RevCommit commit = gitUtils.populateCommit(codeRegionChange.commitHash);
-                        String authorName = commit == null ? null : commit.getAuthorIdent().getName();
-                        String authorEmail = commit == null ? null : commit.getAuthorIdent().getEmailAddress();
-                        int timestamp = commit == null ? 0 : commit.getCommitTime();
-                        new ConflictingRegionHistory(
-                                codeRegionChange.commitHash, 2,
-                                codeRegionChange.oldStartLine, codeRegionChange.oldLength, codeRegionChange.oldPath,
-                                codeRegionChange.newStartLine, codeRegionChange.newLength, codeRegionChange.newPath,
-                                conflictingRegion, authorName, authorEmail, timestamp).saveIt();
-                    });
+                    oursPath = region.oursPath;
+                    theirsPath = region.theirsPath;
+                    batchWriter.insert(conflictingRegion, "conflicting_java_file_id", conflictingJavaFile);
+                    conflictingRegionModels.add(conflictingRegion);
+                    oursRanges.add(region.getOursRange());
+                    theirsRanges.add(region.getTheirsRange());
+                }
+                if (conflictingRegionModels.isEmpty()) continue;
+
+                // The history of all regions of the file is followed in one walk per side.
+                leftConflictingRegionsHistory.clear();
+                rightConflictingRegionsHistory.clear();
+                gitUtils.getConflictingRegionsHistory(mergeCommit.getParent1(), mergeCommit.getParent2(),
+                        oursPath, oursRanges, leftConflictingRegionsHistory);
+                gitUtils.getConflictingRegionsHistory(mergeCommit.getParent2(), mergeCommit.getParent1(),
+                        theirsPath, theirsRanges, rightConflictingRegionsHistory);
+
+                for (int i = 0; i < conflictingRegionModels.size(); i++) {
+                    saveConflictingRegionHistory(commitMetadataCache, leftConflictingRegionsHistory.get(i), 1,
+                            conflictingJavaFile, conflictingRegionModels.get(i), refMinerStage, batchWriter);
+                    saveConflictingRegionHistory(commitMetadataCache, rightConflictingRegionsHistory.get(i), 2,
+                            conflictingJavaFile, conflictingRegionModels.get(i), refMinerStage, batchWriter);
                 }
             }
         }
-        conflictingRegions.clear();
-        leftConflictingRegionHistory.clear();
-        rightConflictingRegionHistory.clear();
+        leftConflictingRegionsHistory.clear();
+        rightConflictingRegionsHistory.clear();
     }
 
     /**
      *
-     * @param project cloned repo of the target variant
+     * @param commitMetadataCache author and timestamp of the commits of the project
+     * @param conflictingRegionHistory changes of the conflicting region on one side of the merge
+     * @param mergeParent side of the merge the changes were made on, 1 or 2
+     * @param conflictingJavaFile file of the conflicting region
+     * @param conflictingRegion instance of the ConflictingRegion class
+     * @param refMinerStage receives the commits of the changes
+     * @param batchWriter collects the history rows
+     * @throws InterruptedException thrown when the thread is interrupted while waiting for the RefMiner stage
+     */
+    private void saveConflictingRegionHistory(CommitMetadataCache commitMetadataCache,
+                                              List<GitUtils.CodeRegionChange> conflictingRegionHistory,
+                                              int mergeParent, ConflictingJavaFile conflictingJavaFile,
+                                              ConflictingRegion conflictingRegion, RefMinerStage refMinerStage,
+                                              BatchWriter batchWriter) throws InterruptedException {
+        for (GitUtils.CodeRegionChange codeRegionChange : conflictingRegionHistory) {
+            CommitMetadataCache.CommitMetadata commit = commitMetadataCache.get(codeRegionChange.commitHash);
+            String authorName = commit == null ? null : commit.authorName;
+            String authorEmail = commit == null ? null : commit.authorEmail;
+            int timestamp = commit == null ? 0 : commit.timestamp;
+            batchWriter.insert(new ConflictingRegionHistory(
+                    codeRegionChange.commitHash, mergeParent,
+                    codeRegionChange.oldStartLine, codeRegionChange.oldLength, codeRegionChange.oldPath,
+                    codeRegionChange.newStartLine, codeRegionChange.newLength, codeRegionChange.newPath,
+                    conflictingRegion, authorName, authorEmail, timestamp),
+                    "conflicting_region_id", conflictingRegion, "conflicting_java_file_id", conflictingJavaFile);
+            refMinerStage.offer(codeRegionChange);
+        }
+    }
+
+    /**
+     * A commit of a conflicting region history and the files the history touches in it
      */
-    private void analyzeProjectWithRefMiner(Project project) {
-        List<ConflictingRegionHistory> historyConfRegions =
-                ConflictingRegionHistory.where("project_id = ?", project.getId());
+    private static class HistoryCommit {
+        static final HistoryCommit END = new HistoryCommit(null, Collections.emptySet());
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        try {
-            File projectFile = new File(clonePath, project.getName());
-            RefactoringMinerUtils refMinerUtils = new RefactoringMinerUtils(projectFile);
+        final String commitHash;
+        final Set<String> paths;
+
+        HistoryCommit(String commitHash, Set<String> paths) {
+            this.commitHash = commitHash;
+            this.paths = paths;
+        }
+    }
+
+    /**
+     * Mines the commits of the conflicting region histories of a project while its patches are still
+     * evaluated. The patch threads hand every history commit over a bounded queue to a dispatcher,
+     * which loads the RefMiner state of new commits in batches, takes cached results from the RefMiner
+     * cache and queues the others in the shared RefMiner pool. Only a bounded number of commits of a
+     * project wait in the pool, after that the dispatcher stops taking commits until one is mined, and
+     * the patch threads wait for a free place in the queue. The history rows are never read back from
+     * the database, except for merge commits that an earlier run finished.
+     * <p>
+     * With the history scope a commit is mined for the files known when it is queued. When a later
+     * history touches other files of the commit, the commit is mined again for all of them at the end.
+     * @see RefactoringMinerPool
+     */
+    private class RefMinerStage implements AutoCloseable {
+        private final Project project;
+        private final File projectFile;
+        private final BlockingQueue<HistoryCommit> queue = new ArrayBlockingQueue<>(REFMINER_QUEUE_CAPACITY);
+        private final Semaphore pendingCommits = new Semaphore(REFMINER_PENDING_COMMITS);
+        private final AtomicInteger analyzedCommits = new AtomicInteger();
+        private final AtomicInteger submittedCommits = new AtomicInteger();
+        private final Thread dispatcher;
+
+        // Only used by the dispatcher until it ends.
+        private final Map<String, Set<String>> pathsByCommit = new HashMap<>();
+        private final Map<String, RefactoringCommit> minedCommits = new HashMap<>();
+        private final Set<String> grownCommits = new LinkedHashSet<>();
+        private final List<Future<?>> futures = new ArrayList<>();
+        private int processedCommits, cachedCommits;
+        private RuntimeException failure;
+
+        RefMinerStage(Project project) {
+            this.project = project;
+            this.projectFile = new File(clonePath, project.getName());
+            this.dispatcher = new Thread(this::dispatch, "refminer-stage-" + project.getName());
+            this.dispatcher.setDaemon(true);
+            this.dispatcher.start();
+        }
+
+        /**
+         * Hands the commit of a history change to the stage, waits while the queue is full
+         * @param codeRegionChange change of a conflicting region
+         * @throws InterruptedException thrown when the thread is interrupted while waiting
+         */
+        void offer(GitUtils.CodeRegionChange codeRegionChange) throws InterruptedException {
+            Set<String> paths = new HashSet<>();
+            for (String path : new String[]{codeRegionChange.oldPath, codeRegionChange.newPath}) {
+                if (path != null && !DiffEntry.DEV_NULL.equals(path)) paths.add(path);
+            }
+            queue.put(new HistoryCommit(codeRegionChange.commitHash, paths));
+        }
 
-            for (int i = 0; i < historyConfRegions.size(); i++) {
-                ConflictingRegionHistory conflictingRegionHistory = historyConfRegions.get(i);
-                Utils.log(project.getName(), String.format("Analyzing commit %.7s with RefMiner... (%d/%d)",
-                        conflictingRegionHistory.getCommitHash(), i + 1, historyConfRegions.size()));
+        /**
+         * Hands the history commits of a merge commit that an earlier run stored to the stage
+         * @param mergeCommit merge commit that was already analyzed
+         * @throws InterruptedException thrown when the thread is interrupted while waiting
+         */
+        void offerStored(MergeCommit mergeCommit) throws InterruptedException {
+            for (Map.Entry<String, Set<String>> commit :
+                    ConflictingRegionHistory.getPathsByCommit(mergeCommit.getId()).entrySet()) {
+                queue.put(new HistoryCommit(commit.getKey(), commit.getValue()));
+            }
+        }
+
+        /**
+         * Waits until every commit that was handed to the stage is mined, must be called after the last offer
+         * @throws InterruptedException thrown when the thread is interrupted while waiting
+         * @throws ExecutionException thrown when the dispatcher or a RefMiner worker failed
+         */
+        void finish() throws InterruptedException, ExecutionException {
+            queue.put(HistoryCommit.END);
+            dispatcher.join();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // The join makes the failure of the dispatcher visible to this thread.
+            if (failure != null) throw new ExecutionException("The commits of a batch were not mined", failure);
+            Utils.log(project.getName(), String.format("%d distinct commits in the conflicting region histories, " +
+                    "%d already analyzed with RefMiner, %d loaded from the RefMiner cache", pathsByCommit.size(),
+                    processedCommits, cachedCommits));
+            if (grownCommits.isEmpty()) return;
+
+            Utils.log(project.getName(), String.format("Analyzing %d commits again with RefMiner for the files " +
+                    "of later histories...", grownCommits.size()));
+            // Their first results must be stored before they are deleted, failures are counted again at the end.
+            writeBehindQueue.flush(project.getName());
+            futures.clear();
+            for (String commitHash : grownCommits) {
+                RefactoringCommit refactoringCommit = minedCommits.get(commitHash);
+                deleteRefactorings(refactoringCommit);
+                submit(refactoringCommit);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
 
-                RefactoringCommit refactoringCommit = populateRefactoringCommit(conflictingRegionHistory);
+        private void dispatch() {
+            Base.open();
+            try {
+                List<HistoryCommit> batch = new ArrayList<>();
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, REFMINER_BATCH_SIZE - 1);
+                    boolean end = batch.remove(HistoryCommit.END);
+                    try {
+                        dispatch(batch);
+                    } catch (RuntimeException e) {
+                        // The queue is still drained, so the patch threads never wait for a dead dispatcher,
+                        // and the failure is reported by finish, so the project is not marked done.
+                        Utils.log(project.getName(), e);
+                        if (failure == null) failure = e;
+                        else failure.addSuppressed(e);
+                    }
+                    batch.clear();
+                    if (end) break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                Base.close();
+            }
+        }
+
+        private void dispatch(List<HistoryCommit> batch) throws InterruptedException {
+            List<String> newCommits = new ArrayList<>();
+            for (HistoryCommit historyCommit : batch) {
+                Set<String> paths = pathsByCommit.get(historyCommit.commitHash);
+                if (paths == null) {
+                    pathsByCommit.put(historyCommit.commitHash, new HashSet<>(historyCommit.paths));
+                    newCommits.add(historyCommit.commitHash);
+                } else if (paths.addAll(historyCommit.paths) && minedCommits.containsKey(historyCommit.commitHash)
+                        && refMinerScope == RefactoringMinerPool.Scope.HISTORY) {
+                    grownCommits.add(historyCommit.commitHash);
+                }
+            }
+            if (newCommits.isEmpty()) return;
+
+            // The RefMiner state of the new commits is loaded in bulk, the same commit usually appears in many rows.
+            Map<String, RefactoringCommit> refactoringCommits = RefactoringCommit.findByCommitHashes(newCommits);
+            for (String commitHash : newCommits) {
+                RefactoringCommit refactoringCommit = populateRefactoringCommit(project, commitHash,
+                        refactoringCommits.get(commitHash), getRefMinerPaths(pathsByCommit.get(commitHash)));
                 if (refactoringCommit == null) {
-                    Utils.log(project.getName(), String.format("Already analyzed %.7s with RefMiner. Skipping...",
-                            conflictingRegionHistory.getCommitHash()));
+                    processedCommits++;
                     continue;
                 }
+                minedCommits.put(commitHash, refactoringCommit);
+                // A commit that is mined again keeps the files it was mined for before.
+                if (refMinerScope == RefactoringMinerPool.Scope.HISTORY) {
+                    pathsByCommit.get(commitHash).addAll(refactoringCommit.getMinedPaths());
+                }
 
-                asyncRunRefMiner(executor, refMinerUtils, project, conflictingRegionHistory, refactoringCommit);
+                // Commits that were mined for another fork or in an earlier run are loaded from the cache.
+                Set<String> paths = getRefMinerPaths(pathsByCommit.get(commitHash));
+                List<MinedRefactoring> cachedRefactorings = refactoringMinerCache.get(commitHash, paths);
+                if (cachedRefactorings != null) {
+                    refactoringCommit.setMinedPaths(paths);
+                    saveRefMinerResult(project, cachedRefactorings, false, refactoringCommit);
+                    cachedCommits++;
+                } else {
+                    submit(refactoringCommit);
+                }
             }
-        } catch (IOException | InterruptedException | ExecutionException e) {
-            Utils.log(project.getName(), e);
-            e.printStackTrace();
         }
-        historyConfRegions.clear();
-        executor.shutdownNow();
+
+        private void submit(RefactoringCommit refactoringCommit) throws InterruptedException {
+            pendingCommits.acquire();
+            String commitHash = refactoringCommit.getCommitHash();
+            // The paths are copied, later histories may still add to them while the commit is mined.
+            Set<String> paths = new HashSet<>(getRefMinerPaths(pathsByCommit.get(commitHash)));
+            refactoringCommit.setMinedPaths(paths);
+            submittedCommits.incrementAndGet();
+            futures.add(refactoringMinerPool.submit(project.getName(), projectFile, commitHash, paths,
+                    (refactorings, timedOut) -> {
+                        try {
+                            saveRefMinerResult(project, refactorings, timedOut, refactoringCommit);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        } finally {
+                            pendingCommits.release();
+                        }
+                        Utils.log(project.getName(), String.format("Analyzed commit %.7s with RefMiner (%d/%d)",
+                                commitHash, analyzedCommits.incrementAndGet(), submittedCommits.get()));
+                    }));
+        }
+
+        /**
+         * Stops taking commits, the commits that are already in the RefMiner pool are still mined
+         */
+        @Override
+        public void close() {
+            dispatcher.interrupt();
+        }
     }
 
     /**
-     *
-     * @param conflictingRegionHistory instance of ConflictingRegionHistory
-     * @return refactoringCommit
-     * @see ConflictingRegionHistory
+     * @return files of the commit that RefactoringMiner analyzes, empty for all changed files
      */
-    private RefactoringCommit populateRefactoringCommit(ConflictingRegionHistory conflictingRegionHistory) {
-        RefactoringCommit refactoringCommit = RefactoringCommit.findFirst("commit_hash = ?",
-                conflictingRegionHistory.getCommitHash());
+    private Set<String> getRefMinerPaths(Set<String> paths) {
+        if (refMinerScope == RefactoringMinerPool.Scope.ALL) return Collections.emptySet();
+        return paths;
+    }
 
+    /**
+     *
+     * @param project cloned repo of the target variant
+     * @param commitHash commit of a conflicting region history
+     * @param refactoringCommit the commit's refactoring commit, or null when there is none yet
+     * @param paths files whose refactorings are needed, empty for all changed files
+     * @return refactoringCommit to analyze, or null when the commit was already analyzed for these files
+     * @see RefactoringCommit
+     */
+    private RefactoringCommit populateRefactoringCommit(Project project, String commitHash,
+                                                        RefactoringCommit refactoringCommit, Set<String> paths) {
         if (refactoringCommit == null) {
-            refactoringCommit = new RefactoringCommit(conflictingRegionHistory.getCommitHash(),
-                    conflictingRegionHistory.getProjectId());
+            refactoringCommit = new RefactoringCommit(commitHash, project.getId());
             refactoringCommit.saveIt();
-        } else if (refactoringCommit.isProcessed()) {
+        } else if (refactoringCommit.isProcessed() && refactoringCommit.isMinedFor(paths)) {
             return null;
         } else {
-               edu.unlv.evol.patchintegrator.database.Refactoring.delete(
-                    "refactoring_commit_id = ?", refactoringCommit.getID());
+            // An earlier run stopped while analyzing the commit or mined it for other files, its results are removed.
+            deleteRefactorings(refactoringCommit);
         }
         return refactoringCommit;
     }
 
+    private void deleteRefactorings(RefactoringCommit refactoringCommit) {
+        edu.unlv.evol.patchintegrator.database.Refactoring.delete(
+                "refactoring_commit_id = ?", refactoringCommit.getID());
+    }
+
     /**
-     *
-     * @param executor service executor object
-     * @param refMinerUtils object refMinerUtils
+     * Stores the result of RefactoringMiner for a commit, called by the RefMiner worker that analyzed it
      * @param project cloned repo of the target variant
-     * @param conflictingRegionHistory instance of ConflictingRegionHistory
+     * @param refactorings refactorings detected in the commit
+     * @param timedOut true when RefactoringMiner did not finish in time or its JVM died
      * @param refactoringCommit object of RefactoringCommit class
-     * @throws InterruptedException interrupt exception
-     * @throws ExecutionException execution exception
+     * @throws InterruptedException thrown when the thread is interrupted while waiting for the database writers
      */
-    private void asyncRunRefMiner(ExecutorService executor, RefactoringMinerUtils refMinerUtils, Project project,
-                                  ConflictingRegionHistory conflictingRegionHistory, RefactoringCommit refactoringCommit)
-            throws InterruptedException, ExecutionException {
-        List<Refactoring> refactorings = new ArrayList<>();
-        Future futureRefMiner = executor.submit(() -> {
-            try {
-                refMinerUtils.detectAtCommit(conflictingRegionHistory.getCommitHash(), refactorings);
-            } catch (Exception e) {
-                Utils.log(project.getName(), e);
-                e.printStackTrace();
-            }
-        });
-
-        try {
-            // Wait up to 4 minutes for RefactoringMiner to finish its analysis.
-            futureRefMiner.get(4, TimeUnit.MINUTES);
-            processRefactorings(refactorings, refactoringCommit, refMinerUtils);
-            refactoringCommit.setDone();
-            refactoringCommit.saveIt();
-
-        } catch (TimeoutException e) {
-            Utils.log(project.getName(), String.format("Commit %.7s timed out. Skipping...",
-                    refactoringCommit.getCommitHash()));
+    private void saveRefMinerResult(Project project, List<MinedRefactoring> refactorings, boolean timedOut,
+                                    RefactoringCommit refactoringCommit) throws InterruptedException {
+        BatchWriter batchWriter = new BatchWriter();
+        if (timedOut) {
             refactoringCommit.setTimedOut();
-            refactoringCommit.saveIt();
+        } else {
+            // The refactorings of the commit are written in one transaction, together with its done flag.
+            processRefactorings(refactorings, refactoringCommit, batchWriter);
+            refactoringCommit.setDone();
         }
+        writeBehindQueue.submit(project.getName(), batchWriter.save(refactoringCommit));
     }
 
     /**
      *
      * @param refactorings list of refactorings
      * @param refactoringCommit object of RefactoringCommit class
-     * @param refMinerUtils object refMinerUtils
+     * @param batchWriter collects the rows of the refactorings
      * @see RefactoringCommit
-     * @see RefactoringMinerUtils
+     * @see MinedRefactoring
      */
-    private void processRefactorings(List<Refactoring> refactorings, RefactoringCommit refactoringCommit,
-                                     RefactoringMinerUtils refMinerUtils) {
-        for (Refactoring refactoring : refactorings) {
+    private void processRefactorings(List<MinedRefactoring> refactorings, RefactoringCommit refactoringCommit,
+                                     BatchWriter batchWriter) {
+        for (MinedRefactoring refactoring : refactorings) {
             edu.unlv.evol.patchintegrator.database.Refactoring refactoringModel =
                     new edu.unlv.evol.patchintegrator.database.Refactoring(
-                            refactoring.getRefactoringType().getDisplayName(),
-                            refactoring.toString(),
+                            refactoring.type,
+                            refactoring.description,
                             refactoringCommit);
-            refactoringModel.saveIt();
-
-            List<CodeRange> sourceCodeRanges = new ArrayList<>();
-            List<CodeRange> destCodeRanges = new ArrayList<>();
-            refMinerUtils.getRefactoringCodeRanges(refactoring, sourceCodeRanges, destCodeRanges);
-            sourceCodeRanges.forEach(cr -> new RefactoringRegion('s', cr.getFilePath(), cr.getStartLine(),
-                    cr.getEndLine() - cr.getStartLine(), refactoringModel).saveIt());
-            destCodeRanges.forEach(cr -> new RefactoringRegion('d', cr.getFilePath(), cr.getStartLine(),
-                    cr.getEndLine() - cr.getStartLine(), refactoringModel).saveIt());
+            batchWriter.insert(refactoringModel);
+
+            refactoring.sourceRanges.forEach(cr -> batchWriter.insert(new RefactoringRegion('s', cr.filePath,
+                    cr.startLine, cr.endLine - cr.startLine, refactoringModel), "refactoring_id", refactoringModel));
+            refactoring.destRanges.forEach(cr -> batchWriter.insert(new RefactoringRegion('d', cr.filePath,
+                    cr.startLine, cr.endLine - cr.startLine, refactoringModel), "refactoring_id", refactoringModel));
         }
     }
 }
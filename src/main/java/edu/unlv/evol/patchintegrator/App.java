@@ -1,5 +1,7 @@
 package edu.unlv.evol.patchintegrator;
 
+import edu.unlv.evol.patchintegrator.utils.CloneManager;
+import edu.unlv.evol.patchintegrator.utils.RefactoringMinerPool;
 import org.apache.commons.cli.*;
 
 import java.io.File;
@@ -7,9 +9,15 @@ import java.io.File;
 public class App {
 
     private static final int DEFAULT_PARALLELISM = 1;
+    private static final int DEFAULT_PATCH_THREADS = 1;
+    private static final int DEFAULT_REFMINER_THREADS = 1;
+    private static final int DEFAULT_DB_WRITERS = 1;
+    private static final String DEFAULT_REFMINER_HEAP = RefactoringMinerPool.DEFAULT_MAX_HEAP;
     private static final String DEFAULT_REPOS_FILE = "reposList.txt";
     private static final String DEFAULT_CLONE_PATH = "projects";
     private static final String DEFAULT_DB_PROPERTIES_FILE = "database.properties";
+    private static final String DEFAULT_FETCH_MODE = "all";
+    private static final String DEFAULT_REFMINER_SCOPE = "all";
 //    private static final String DEFAULT_SOURCE_REPO = "https://github.com/apache/kafka"; //Apache Kafka
 //    private static final String DEFAULT_VARIANT_REPO = "https://github.com/danielogen/linkedin"; //LinkedIn Kafka
 //    private static final int [] DEFAULT_PATCHES = {11791,11686,11591,12159,12073,11981,11867,11991,12207,11847};
@@ -26,9 +34,15 @@ public class App {
             }
 
             int parallelism = DEFAULT_PARALLELISM;
+            int patchThreads = DEFAULT_PATCH_THREADS;
+            int refMinerThreads = DEFAULT_REFMINER_THREADS;
+            int dbWriters = DEFAULT_DB_WRITERS;
+            String refMinerHeap = DEFAULT_REFMINER_HEAP;
+            String refMinerScope = DEFAULT_REFMINER_SCOPE;
             String reposFile = DEFAULT_REPOS_FILE;
             String clonePath = DEFAULT_CLONE_PATH;
             String dbPropertiesFile = DEFAULT_DB_PROPERTIES_FILE;
+            String fetchMode = DEFAULT_FETCH_MODE;
 //            int [] patches = DEFAULT_PATCHES;
 
             if (commandLine.hasOption("r")) {
@@ -43,11 +57,31 @@ public class App {
             if (commandLine.hasOption("p")) {
                 parallelism = Integer.parseInt(commandLine.getOptionValue("p"));
             }
+            if (commandLine.hasOption("f")) {
+                fetchMode = commandLine.getOptionValue("f");
+            }
+            if (commandLine.hasOption("w")) {
+                patchThreads = Integer.parseInt(commandLine.getOptionValue("w"));
+            }
+            if (commandLine.hasOption("m")) {
+                refMinerThreads = Integer.parseInt(commandLine.getOptionValue("m"));
+            }
+            if (commandLine.hasOption("x")) {
+                refMinerHeap = commandLine.getOptionValue("x");
+            }
+            if (commandLine.hasOption("s")) {
+                refMinerScope = commandLine.getOptionValue("s");
+            }
+            if (commandLine.hasOption("b")) {
+                dbWriters = Integer.parseInt(commandLine.getOptionValue("b"));
+            }
 
             dbPropertiesFile = (new File(dbPropertiesFile)).getAbsolutePath();
             System.setProperty("env.connections.file", dbPropertiesFile);
 
-            AnalysisWithCherryPick analysisWithCherryPick = new AnalysisWithCherryPick(reposFile, clonePath);
+            AnalysisWithCherryPick analysisWithCherryPick = new AnalysisWithCherryPick(reposFile, clonePath,
+                    CloneManager.FetchMode.valueOf(fetchMode.toUpperCase()), patchThreads, refMinerThreads,
+                    refMinerHeap, RefactoringMinerPool.Scope.valueOf(refMinerScope.toUpperCase()), dbWriters);
             analysisWithCherryPick.start(parallelism);
 
 //            AnalysisWithCherryPick analysisWithCherryPick = new AnalysisWithCherryPick(clonePath, DEFAULT_SOURCE_REPO, DEFAULT_VARIANT_REPO,DEFAULT_PATCHES[0]);
@@ -70,7 +104,8 @@ public class App {
                 .create("r"));
 
         options.addOption(OptionBuilder.withLongOpt("clonepath")
-                .withDescription(String.format("directory to temporarily download repositories (default=%s)", DEFAULT_CLONE_PATH))
+                .withDescription(String.format("directory to keep repository mirrors, working trees, cached pull " +
+                        "requests and RefMiner results (default=%s)", DEFAULT_CLONE_PATH))
                 .hasArgs()
                 .withArgName("file")
                 .isRequired(false)
@@ -89,6 +124,55 @@ public class App {
                 .withArgName("threads")
                 .isRequired(false)
                 .create("p"));
+
+        options.addOption(OptionBuilder.withLongOpt("fetchmode")
+                .withDescription(String.format("all: mirror the whole source repository, patches: fetch only the " +
+                        "merge commits of the patches (default=%s)", DEFAULT_FETCH_MODE))
+                .hasArgs()
+                .withArgName("mode")
+                .isRequired(false)
+                .create("f"));
+
+        options.addOption(OptionBuilder.withLongOpt("patchthreads")
+                .withDescription(String.format("number of patches of a project evaluated in parallel (default=%d)",
+                        DEFAULT_PATCH_THREADS))
+                .hasArgs()
+                .withArgName("threads")
+                .isRequired(false)
+                .create("w"));
+
+        options.addOption(OptionBuilder.withLongOpt("refminerthreads")
+                .withDescription(String.format("number of commits analyzed by RefactoringMiner at the same time, " +
+                        "shared by all projects (default=%d)", DEFAULT_REFMINER_THREADS))
+                .hasArgs()
+                .withArgName("threads")
+                .isRequired(false)
+                .create("m"));
+
+        options.addOption(OptionBuilder.withLongOpt("refminerheap")
+                .withDescription(String.format("maximum heap of every RefactoringMiner JVM (default=%s)",
+                        DEFAULT_REFMINER_HEAP))
+                .hasArgs()
+                .withArgName("size")
+                .isRequired(false)
+                .create("x"));
+
+        options.addOption(OptionBuilder.withLongOpt("refminerscope")
+                .withDescription(String.format("all: analyze every changed Java file of a commit with RefactoringMiner, " +
+                        "history: only the files of the conflicting region histories and the files needed to " +
+                        "detect moves and renames (default=%s)", DEFAULT_REFMINER_SCOPE))
+                .hasArgs()
+                .withArgName("scope")
+                .isRequired(false)
+                .create("s"));
+
+        options.addOption(OptionBuilder.withLongOpt("dbwriters")
+                .withDescription(String.format("number of threads writing the results to the database, shared by " +
+                        "all projects (default=%d)", DEFAULT_DB_WRITERS))
+                .hasArgs()
+                .withArgName("threads")
+                .isRequired(false)
+                .create("b"));
         return options;
     }
 
@@ -0,0 +1,197 @@
+package edu.unlv.evol.patchintegrator.database;
+
+import org.javalite.activejdbc.Base;
+import org.javalite.activejdbc.DBException;
+import org.javalite.activejdbc.Model;
+import org.javalite.activejdbc.Registry;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the rows of one unit of work, e.g. the conflicts of a merge commit or the refactorings of a
+ * commit, in one transaction. The new rows of a table are sent as multi-row INSERTs instead of one
+ * statement per row, and their generated ids are copied to the rows that refer to them before those are
+ * inserted. The tables are written in the order their first row was added, so a row has to be added
+ * after the rows it refers to.
+ * <p>
+ * The models are only collected until {@link #write()}, they must not be saved in between. A writer
+ * whose write failed keeps its rows and can be written again.
+ */
+public class BatchWriter {
+
+    private static final int MAX_ROWS_PER_INSERT = 500;
+
+    private final Map<String, List<Model>> newRows = new LinkedHashMap<>();
+    private final Map<Model, Object[]> references = new IdentityHashMap<>();
+    private final List<Model> savedModels = new ArrayList<>();
+
+    /**
+     * Adds a new row
+     * @param model the row
+     * @param references pairs of a foreign key of the row and the new row it refers to, e.g.
+     *                   "conflicting_region_id", conflictingRegion, the key is set once that row has its id
+     * @return this writer
+     */
+    public BatchWriter insert(Model model, Object... references) {
+        if (references.length % 2 != 0) {
+            throw new IllegalArgumentException("The references must be pairs of a foreign key and a model");
+        }
+        String table = Registry.instance().getMetaModel(model.getClass()).getTableName();
+        newRows.computeIfAbsent(table, t -> new ArrayList<>()).add(model);
+        if (references.length > 0) this.references.put(model, references);
+        return this;
+    }
+
+    /**
+     * Saves a model with saveIt after the new rows, in the same transaction, e.g. to mark the unit as done
+     * @param model the model
+     * @return this writer
+     */
+    public BatchWriter save(Model model) {
+        savedModels.add(model);
+        return this;
+    }
+
+    /**
+     * Adds the rows of another writer, which is left unchanged. Both writers must add their tables in the
+     * same order, e.g. because they describe the same kind of unit of work.
+     * @param other writer whose rows are added
+     * @return this writer
+     */
+    public BatchWriter addAll(BatchWriter other) {
+        other.newRows.forEach((table, models) ->
+                newRows.computeIfAbsent(table, t -> new ArrayList<>()).addAll(models));
+        references.putAll(other.references);
+        savedModels.addAll(other.savedModels);
+        return this;
+    }
+
+    /**
+     * @return true when no rows were added
+     */
+    public boolean isEmpty() {
+        return newRows.isEmpty() && savedModels.isEmpty();
+    }
+
+    /**
+     * Writes all rows in one transaction and empties the writer, nothing is written when it fails
+     * @throws DBException thrown when a row cannot be written
+     */
+    public void write() {
+        if (isEmpty()) return;
+
+        Connection connection = Base.connection();
+        boolean written = false;
+        Base.openTransaction();
+        try {
+            for (Map.Entry<String, List<Model>> table : newRows.entrySet()) {
+                insert(connection, table.getKey(), table.getValue());
+            }
+            for (Model model : savedModels) {
+                model.saveIt();
+            }
+            Base.commitTransaction();
+            written = true;
+        } catch (SQLException e) {
+            Base.rollbackTransaction();
+            throw new DBException(e);
+        } catch (RuntimeException e) {
+            Base.rollbackTransaction();
+            throw e;
+        } finally {
+            // ActiveJDBC leaves the connection in manual commit mode after a transaction.
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                throw new DBException(e);
+            }
+            if (written) {
+                newRows.clear();
+                references.clear();
+                savedModels.clear();
+            } else {
+                savedModels.forEach(BatchWriter::markModified);
+            }
+        }
+    }
+
+    /**
+     * saveIt only updates the modified attributes and forgets them even when the transaction is rolled back,
+     * so they are set again for the next write
+     */
+    private static void markModified(Model model) {
+        model.toMap().forEach((name, value) -> {
+            if (!name.equalsIgnoreCase(model.getIdName()) && !name.equalsIgnoreCase("created_at")) {
+                model.set(name, value);
+            }
+        });
+    }
+
+    private void insert(Connection connection, String table, List<Model> models) throws SQLException {
+        List<Map<String, Object>> rows = new ArrayList<>(models.size());
+        for (Model model : models) {
+            Object[] modelReferences = references.getOrDefault(model, new Object[0]);
+            for (int i = 0; i < modelReferences.length; i += 2) {
+                Model parent = (Model) modelReferences[i + 1];
+                if (parent.getId() == null) {
+                    throw new IllegalStateException(String.format("A row of %s refers to a row of %s that is " +
+                            "not written yet", table, parent.getClass().getSimpleName()));
+                }
+                model.set((String) modelReferences[i], parent.getId());
+            }
+            Map<String, Object> row = model.toMap();
+            row.remove(model.getIdName());
+            rows.add(row);
+        }
+
+        // Consecutive rows with the same columns share a statement.
+        int from = 0;
+        while (from < rows.size()) {
+            Set<String> columns = rows.get(from).keySet();
+            int to = from + 1;
+            while (to < rows.size() && to - from < MAX_ROWS_PER_INSERT && rows.get(to).keySet().equals(columns)) {
+                to++;
+            }
+            insert(connection, table, columns, rows.subList(from, to), models.subList(from, to));
+            from = to;
+        }
+    }
+
+    private void insert(Connection connection, String table, Set<String> columns, List<Map<String, Object>> rows,
+                        List<Model> models) throws SQLException {
+        String values = "(" + String.join(", ", Collections.nCopies(columns.size(), "?")) + ")";
+        String sql = String.format("INSERT INTO %s (%s) VALUES %s", table, String.join(", ", columns),
+                String.join(", ", Collections.nCopies(rows.size(), values)));
+
+        try (PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            int parameter = 1;
+            for (Map<String, Object> row : rows) {
+                for (String column : columns) {
+                    statement.setObject(parameter++, row.get(column));
+                }
+            }
+            statement.executeUpdate();
+
+            // The ids of a multi-row INSERT are consecutive and returned in the order of the rows.
+            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                for (Model model : models) {
+                    if (!generatedKeys.next()) {
+                        throw new SQLException("Fewer generated keys than rows inserted into " + table);
+                    }
+                    model.setId(generatedKeys.getInt(1));
+                }
+            }
+        }
+    }
+}
@@ -19,7 +19,10 @@ public class ConflictingRegion extends Model {
                 "patch_id", conflictingJavaFile.getPatchId());
     }
 
-    public int getConflictingJavaFileId() {
+    /**
+     * @return id of the conflicting java file, null while the file is not written yet
+     */
+    public Integer getConflictingJavaFileId() {
         return getInteger("conflicting_java_file_id");
     }
 
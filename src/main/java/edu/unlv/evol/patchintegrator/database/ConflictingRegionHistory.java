@@ -1,8 +1,14 @@
 package edu.unlv.evol.patchintegrator.database;
 
+import org.javalite.activejdbc.Base;
 import org.javalite.activejdbc.Model;
 import org.javalite.activejdbc.annotations.Table;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 @Table("conflicting_region_history")
 public class ConflictingRegionHistory extends Model {
 
@@ -40,6 +46,28 @@ public class ConflictingRegionHistory extends Model {
         return getInteger("project_id");
     }
 
+    /**
+     * @param mergeCommitId id of the merge commit
+     * @return the files that the histories of the merge commit touch in every commit, the commits in the order
+     * they were first recorded
+     */
+    public static Map<String, Set<String>> getPathsByCommit(Object mergeCommitId) {
+        Map<String, Set<String>> pathsByCommit = new LinkedHashMap<>();
+        Base.findAll("SELECT commit_hash, old_path, new_path FROM conflicting_region_history " +
+                "WHERE merge_commit_id = ? GROUP BY commit_hash, old_path, new_path ORDER BY MIN(id)",
+                mergeCommitId).forEach(row -> {
+            Set<String> paths = pathsByCommit.computeIfAbsent(row.get("commit_hash").toString(),
+                    hash -> new HashSet<>());
+            addPath(paths, row.get("old_path"));
+            addPath(paths, row.get("new_path"));
+        });
+        return pathsByCommit;
+    }
+
+    private static void addPath(Set<String> paths, Object path) {
+        if (path != null && !"/dev/null".equals(path.toString())) paths.add(path.toString());
+    }
+
     public void setCommitDetails(String authorName, String authorEmail, int timestamp) {
         set("author_name", authorName, "author_email", authorEmail,
                 "timestamp", timestamp);
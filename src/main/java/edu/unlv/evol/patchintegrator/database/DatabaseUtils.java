@@ -7,6 +7,9 @@ import org.javalite.activejdbc.connection_config.ConnectionSpec;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,12 +21,18 @@ public class DatabaseUtils {
     private static final String DEFAULT_DELIMITER = ";";
     private static final String DELIMITER_KEYWORD = "DELIMITER";
     private static final String[] COMMENT_CHARS = new String[]{"--", "#", "//"};
+    // Table, name and definition of the columns that were added to the schema after its first release.
+    private static final String[][] ADDED_COLUMNS = {{"refactoring_commit", "mined_paths", "TEXT NULL"}};
 
 
     public static void createDatabase() throws Exception {
         try {
             Base.open();
-            Base.close();
+            try {
+                upgradeDatabase();
+            } finally {
+                Base.close();
+            }
         } catch (InitException e) {
             Configuration config = Registry.instance().getConfiguration();
             ConnectionSpec spec = config.getCurrentConnectionSpec();
@@ -47,6 +56,22 @@ public class DatabaseUtils {
     }
 
 
+    /**
+     * Adds the columns that are missing from a database created by an earlier version
+     * @throws SQLException thrown when the columns cannot be read or added
+     */
+    private static void upgradeDatabase() throws SQLException {
+        DatabaseMetaData metaData = Base.connection().getMetaData();
+        for (String[] column : ADDED_COLUMNS) {
+            try (ResultSet columns = metaData.getColumns(Base.connection().getCatalog(), null, column[0], column[1])) {
+                if (!columns.next()) {
+                    Base.exec(String.format("ALTER TABLE `%s` ADD COLUMN `%s` %s", column[0], column[1], column[2]));
+                }
+            }
+        }
+    }
+
+
     private static void createDatabase(InputStream scriptInputStream, DB db, String defaultDbName, String newDbName)
             throws Exception {
         BufferedReader reader = new BufferedReader(new InputStreamReader(scriptInputStream));
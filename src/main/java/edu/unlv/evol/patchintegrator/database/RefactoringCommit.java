@@ -1,11 +1,22 @@
 package edu.unlv.evol.patchintegrator.database;
 
+import org.javalite.activejdbc.LazyList;
 import org.javalite.activejdbc.Model;
 import org.javalite.activejdbc.annotations.Table;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
 @Table("refactoring_commit")
 public class RefactoringCommit extends Model {
 
+    private static final int MAX_QUERY_PARAMETERS = 1000;
+
     public RefactoringCommit() {
     }
 
@@ -37,4 +48,47 @@ public class RefactoringCommit extends Model {
         setInteger("is_done", 2);
     }
 
+    /**
+     * @return files the commit was mined for, empty when it was mined for all changed files
+     */
+    public Set<String> getMinedPaths() {
+        String minedPaths = getString("mined_paths");
+        if (minedPaths == null || minedPaths.isEmpty()) return Collections.emptySet();
+        return new TreeSet<>(Arrays.asList(minedPaths.split("\n")));
+    }
+
+    /**
+     * @param paths files the commit is mined for, empty for all changed files
+     */
+    public void setMinedPaths(Set<String> paths) {
+        set("mined_paths", paths.isEmpty() ? null : String.join("\n", new TreeSet<>(paths)));
+    }
+
+    /**
+     * @param paths files whose refactorings are needed, empty for all changed files
+     * @return true when the commit was mined for all of these files
+     */
+    public boolean isMinedFor(Set<String> paths) {
+        Set<String> minedPaths = getMinedPaths();
+        return minedPaths.isEmpty() || (!paths.isEmpty() && minedPaths.containsAll(paths));
+    }
+
+    /**
+     * Loads the refactoring commits of many commits with a few IN queries instead of one query per commit
+     * @param commitHashes commits to look up
+     * @return the oldest refactoring commit of every commit that has one, keyed by commit hash
+     */
+    public static Map<String, RefactoringCommit> findByCommitHashes(List<String> commitHashes) {
+        Map<String, RefactoringCommit> refactoringCommits = new HashMap<>();
+        for (int from = 0; from < commitHashes.size(); from += MAX_QUERY_PARAMETERS) {
+            List<String> batch = commitHashes.subList(from, Math.min(from + MAX_QUERY_PARAMETERS, commitHashes.size()));
+            String parameters = String.join(", ", Collections.nCopies(batch.size(), "?"));
+            LazyList<RefactoringCommit> found = RefactoringCommit.where("commit_hash IN (" + parameters + ")",
+                    batch.toArray()).orderBy("id");
+            found.forEach(refactoringCommit -> refactoringCommits.putIfAbsent(refactoringCommit.getCommitHash(),
+                    refactoringCommit));
+        }
+        return refactoringCommits;
+    }
+
 }
@@ -0,0 +1,200 @@
+package edu.unlv.evol.patchintegrator.database;
+
+import edu.unlv.evol.patchintegrator.utils.Utils;
+import org.javalite.activejdbc.Base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the results of the analysis behind the threads that produce them. A thread hands every unit of
+ * work, e.g. the conflicts of a merge commit or the refactorings of a commit, over as a complete
+ * {@link BatchWriter} and goes on, while writer threads take the units from a bounded queue and write
+ * the units they find waiting together in one transaction. A thread that finds the queue full waits
+ * until a writer took a unit, so the results kept in memory stay bounded.
+ * <p>
+ * A unit is never split across transactions and carries the done flag of its merge commit or refactoring
+ * commit, so the flag is stored exactly when the rows are. A run that stops with units in the queue
+ * analyzes their commits again when it is resumed. A unit that cannot be written is logged, dropped and
+ * counted for its project, so the project is not marked done and the next run analyzes its commits again.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final int MAX_UNITS_PER_TRANSACTION = 16;
+
+    private static class Unit {
+        static final Unit END = new Unit(-1, null, null);
+
+        final long sequence;
+        final String projectName;
+        final BatchWriter batchWriter;
+
+        Unit(long sequence, String projectName, BatchWriter batchWriter) {
+            this.sequence = sequence;
+            this.projectName = projectName;
+            this.batchWriter = batchWriter;
+        }
+    }
+
+    private final BlockingQueue<Unit> queue;
+    private final List<Thread> writers = new ArrayList<>();
+    // Sequences of the units that were submitted but are not written yet, guarded by itself.
+    private final TreeSet<Long> pendingUnits = new TreeSet<>();
+    private long nextSequence;
+    private final AtomicInteger writtenUnits = new AtomicInteger();
+    private final AtomicInteger failedUnits = new AtomicInteger();
+    private final Map<String, AtomicInteger> failedUnitsByProject = new ConcurrentHashMap<>();
+    private final AtomicInteger transactions = new AtomicInteger();
+
+    public WriteBehindQueue(int threads) {
+        this(threads, DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @param threads number of writer threads, each with its own connection
+     * @param capacity number of units that may wait for a writer
+     */
+    public WriteBehindQueue(int threads, int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < threads; i++) {
+            Thread writer = new Thread(this::write, "db-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+    }
+
+    /**
+     * Hands a unit of work to the writers, waits while the queue is full. The unit and its models must not
+     * be used by the caller afterwards.
+     * @param projectName name of the project, for logging and counting its failed units
+     * @param batchWriter rows of the unit
+     * @throws InterruptedException thrown when the thread is interrupted while waiting
+     */
+    public void submit(String projectName, BatchWriter batchWriter) throws InterruptedException {
+        if (batchWriter.isEmpty()) return;
+        long sequence;
+        synchronized (pendingUnits) {
+            sequence = nextSequence++;
+            pendingUnits.add(sequence);
+        }
+        try {
+            queue.put(new Unit(sequence, projectName, batchWriter));
+        } catch (InterruptedException e) {
+            complete(sequence);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until every unit that was submitted before is written or dropped
+     * @param projectName name of the project
+     * @return number of units of the project that could not be written so far
+     * @throws InterruptedException thrown when the thread is interrupted while waiting
+     */
+    public int flush(String projectName) throws InterruptedException {
+        synchronized (pendingUnits) {
+            long sequence = nextSequence;
+            while (!pendingUnits.isEmpty() && pendingUnits.first() < sequence) {
+                pendingUnits.wait();
+            }
+        }
+        AtomicInteger failed = failedUnitsByProject.get(projectName);
+        return failed == null ? 0 : failed.get();
+    }
+
+    private void complete(long sequence) {
+        synchronized (pendingUnits) {
+            pendingUnits.remove(sequence);
+            pendingUnits.notifyAll();
+        }
+    }
+
+    private void write() {
+        Base.open();
+        try {
+            List<Unit> units = new ArrayList<>();
+            while (true) {
+                units.add(queue.take());
+                queue.drainTo(units, MAX_UNITS_PER_TRANSACTION - 1);
+                boolean end = units.remove(Unit.END);
+                write(units);
+                units.forEach(unit -> complete(unit.sequence));
+                units.clear();
+                if (end) {
+                    // The marker is passed on to the next writer.
+                    queue.put(Unit.END);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Base.close();
+        }
+    }
+
+    private void write(List<Unit> units) {
+        if (units.isEmpty()) return;
+        BatchWriter transaction = new BatchWriter();
+        units.forEach(unit -> transaction.addAll(unit.batchWriter));
+        try {
+            transaction.write();
+            transactions.incrementAndGet();
+            writtenUnits.addAndGet(units.size());
+            return;
+        } catch (RuntimeException e) {
+            if (units.size() == 1) {
+                fail(units.get(0), e);
+                return;
+            }
+        }
+
+        // One unit spoiled the transaction, the others are written on their own.
+        for (Unit unit : units) {
+            try {
+                unit.batchWriter.write();
+                transactions.incrementAndGet();
+                writtenUnits.incrementAndGet();
+            } catch (RuntimeException e) {
+                fail(unit, e);
+            }
+        }
+    }
+
+    private void fail(Unit unit, RuntimeException e) {
+        failedUnits.incrementAndGet();
+        failedUnitsByProject.computeIfAbsent(unit.projectName, key -> new AtomicInteger()).incrementAndGet();
+        Utils.log(unit.projectName, e);
+        e.printStackTrace();
+    }
+
+    /**
+     * Writes the units that are still queued and stops the writers, must be called after the last submit
+     */
+    @Override
+    public void close() {
+        try {
+            queue.put(Unit.END);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Database writers: %d units written in %d transactions, %d failed", writtenUnits.get(),
+                transactions.get(), failedUnits.get());
+    }
+}
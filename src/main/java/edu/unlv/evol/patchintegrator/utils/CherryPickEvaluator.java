@@ -0,0 +1,480 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.diff.Sequence;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.merge.MergeAlgorithm;
+import org.eclipse.jgit.merge.MergeChunk;
+import org.eclipse.jgit.merge.MergeResult;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates a cherry-pick in memory with JGit's {@link ResolveMerger}, using the parent of the picked
+ * commit as the merge base. Neither the working tree nor the index is touched and no branch is
+ * created, so several evaluations can run concurrently on the same repository. The line ranges of
+ * the conflicts are taken from the conflict chunks of the merge, no diff of the result is needed.
+ * <p>
+ * ResolveMerger does not detect renames, so the evaluator detects the renames of both sides and handles
+ * them like git does. A file that one side renamed and the other side modified comes out of ResolveMerger
+ * as a modify/delete conflict; its modified content is merged into the renamed file, which either merges
+ * cleanly or gives a content conflict under the new path. A file that both sides renamed alike is merged
+ * with its base. A file that one side renamed and the other side deleted, or renamed to another path, is
+ * merged cleanly by ResolveMerger and reported as a rename/delete or rename/rename conflict, and a
+ * renamed file that meets a file added by the other side is reported as a rename/add conflict.
+ */
+public class CherryPickEvaluator {
+
+    private final Repository repository;
+
+    public CherryPickEvaluator(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Cherry-picks a commit onto another commit. Merge commits are picked relative to their
+     * first parent, like git cherry-pick -m 1 does.
+     * @param head commit on which the commit is picked
+     * @param commit commit to be picked
+     * @return outcome of the cherry-pick with the type of every conflicting path
+     * @throws IOException thrown when an object cannot be read
+     */
+    public Result evaluate(RevCommit head, RevCommit commit) throws IOException {
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk walk = new RevWalk(reader)) {
+            RevCommit headCommit = walk.parseCommit(head);
+            RevCommit pickedCommit = walk.parseCommit(commit);
+            RevCommit baseCommit = pickedCommit.getParentCount() > 0
+                    ? walk.parseCommit(pickedCommit.getParent(0)) : null;
+
+            ResolveMerger merger = (ResolveMerger) MergeStrategy.RESOLVE.newMerger(repository, true);
+            merger.setCommitNames(new String[]{"BASE", "HEAD", pickedCommit.getName()});
+            merger.setBase(baseCommit);
+            boolean merged = merger.merge(headCommit, pickedCommit);
+            if (merged && baseCommit == null) {
+                return new Result(false, Collections.emptyMap(), Collections.emptyMap());
+            }
+
+            // A clean merge may still hide rename/delete and rename/rename conflicts.
+            Set<String> deletedInHead = new HashSet<>();
+            Set<String> deletedInPicked = new HashSet<>();
+            Map<String, ConflictType> conflicts = classifyConflicts(merged ? Collections.emptyList() :
+                            merger.getUnmergedPaths(), baseCommit == null ? null : baseCommit.getTree(),
+                    headCommit.getTree(), pickedCommit.getTree(), deletedInHead, deletedInPicked);
+            Map<String, List<ConflictRegion>> conflictRegions = new LinkedHashMap<>();
+            conflicts.forEach((path, conflictType) -> {
+                MergeResult<? extends Sequence> mergeResult = merger.getMergeResults().get(path);
+                if (mergeResult != null && (conflictType == ConflictType.CONTENT || conflictType == ConflictType.ADD_ADD)) {
+                    conflictRegions.put(path, getConflictRegions(path, path, path, mergeResult));
+                }
+            });
+            if (baseCommit != null) {
+                resolveRenames(reader, conflicts, conflictRegions, deletedInHead, deletedInPicked,
+                        baseCommit.getTree(), headCommit.getTree(), pickedCommit.getTree());
+            }
+            return new Result(!conflicts.isEmpty(), conflicts, conflictRegions);
+        }
+    }
+
+    /**
+     * Collects the line ranges of every conflict chunk of a content merge. The merge reports the
+     * conflicting ranges of both sides, the base range is the gap between the surrounding base chunks.
+     * Lines both sides agree on at the start or end of a conflict come as one-sided chunks between the
+     * conflict and the base chunks, their base lines are left out of the base range.
+     * @param path path of the merged file
+     * @param oursPath path of the file on the side the commit is picked onto
+     * @param theirsPath path of the file in the picked commit
+     * @param mergeResult result of the content merge
+     * @return conflict regions in the order of the file
+     */
+    static List<ConflictRegion> getConflictRegions(String path, String oursPath, String theirsPath,
+                                                   MergeResult<? extends Sequence> mergeResult) {
+        List<ConflictRegion> conflictRegions = new ArrayList<>();
+        List<int[]> openConflicts = new ArrayList<>();
+        int[] conflict = null;
+        int baseEnd = 0;
+        int oneSidedLines = 0;
+        for (MergeChunk chunk : mergeResult) {
+            switch (chunk.getConflictState()) {
+                case FIRST_CONFLICTING_RANGE:
+                    conflict = new int[]{baseEnd + oneSidedLines, chunk.getBegin(), chunk.getEnd(), 0, 0};
+                    oneSidedLines = 0;
+                    break;
+                case NEXT_CONFLICTING_RANGE:
+                    if (conflict == null) break;
+                    conflict[3] = chunk.getBegin();
+                    conflict[4] = chunk.getEnd();
+                    openConflicts.add(conflict);
+                    conflict = null;
+                    break;
+                default:
+                    if (chunk.getSequenceIndex() != 0) {
+                        oneSidedLines += chunk.getEnd() - chunk.getBegin();
+                        break;
+                    }
+                    for (int[] openConflict : openConflicts) {
+                        conflictRegions.add(getConflictRegion(path, oursPath, theirsPath, openConflict,
+                                chunk.getBegin(), oneSidedLines));
+                    }
+                    openConflicts.clear();
+                    baseEnd = chunk.getEnd();
+                    oneSidedLines = 0;
+            }
+        }
+        int baseSize = mergeResult.getSequences().get(0).size();
+        for (int[] openConflict : openConflicts) {
+            conflictRegions.add(getConflictRegion(path, oursPath, theirsPath, openConflict, baseSize,
+                    oneSidedLines));
+        }
+        return conflictRegions;
+    }
+
+    /**
+     * @param conflict conflict whose base range starts after the lines both sides agree on at its start
+     * @param baseEnd begin of the base chunk after the conflict
+     * @param suffixLines lines both sides agree on at the end of the conflict
+     */
+    private static ConflictRegion getConflictRegion(String path, String oursPath, String theirsPath,
+                                                    int[] conflict, int baseEnd, int suffixLines) {
+        conflict[0] = Math.min(conflict[0], baseEnd);
+        return new ConflictRegion(path, oursPath, theirsPath, conflict,
+                Math.max(conflict[0], baseEnd - suffixLines));
+    }
+
+    /**
+     * Finds the type of every unmerged path from its presence in the base and in both sides
+     * @param unmergedPaths paths that the merger could not merge
+     * @param baseTree tree of the merge base, or null when the picked commit has no parent
+     * @param headTree tree of the commit on which the commit is picked
+     * @param pickedTree tree of the picked commit
+     * @param deletedInHead stores the modify/delete paths that the commit is picked onto deleted
+     * @param deletedInPicked stores the modify/delete paths that the picked commit deleted
+     * @return conflict type keyed by path, in the order of the unmerged paths
+     * @throws IOException thrown when a tree cannot be read
+     */
+    private Map<String, ConflictType> classifyConflicts(List<String> unmergedPaths, RevTree baseTree,
+                                                        RevTree headTree, RevTree pickedTree,
+                                                        Set<String> deletedInHead, Set<String> deletedInPicked)
+            throws IOException {
+        Map<String, ConflictType> conflicts = new LinkedHashMap<>();
+        unmergedPaths.forEach(path -> conflicts.put(path, ConflictType.CONTENT));
+        if (conflicts.isEmpty() || baseTree == null) {
+            conflicts.replaceAll((path, type) -> ConflictType.ADD_ADD);
+            return conflicts;
+        }
+
+        try (TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.addTree(baseTree);
+            treeWalk.addTree(headTree);
+            treeWalk.addTree(pickedTree);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(PathFilterGroup.createFromStrings(conflicts.keySet()));
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (!conflicts.containsKey(path)) continue;
+
+                if (treeWalk.getRawMode(0) == 0) {
+                    conflicts.put(path, ConflictType.ADD_ADD);
+                } else if (treeWalk.getRawMode(1) == 0) {
+                    conflicts.put(path, ConflictType.MODIFY_DELETE);
+                    deletedInHead.add(path);
+                } else if (treeWalk.getRawMode(2) == 0) {
+                    conflicts.put(path, ConflictType.MODIFY_DELETE);
+                    deletedInPicked.add(path);
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * Handles the renames of both sides, see the class description
+     * @param reader reader of the repository
+     * @param conflicts conflict types keyed by path
+     * @param conflictRegions conflict regions keyed by path
+     * @param deletedInHead modify/delete paths that the commit is picked onto deleted
+     * @param deletedInPicked modify/delete paths that the picked commit deleted
+     * @param baseTree tree of the merge base
+     * @param headTree tree of the commit on which the commit is picked
+     * @param pickedTree tree of the picked commit
+     * @throws IOException thrown when a tree or a file cannot be read
+     */
+    private void resolveRenames(ObjectReader reader, Map<String, ConflictType> conflicts,
+                                Map<String, List<ConflictRegion>> conflictRegions, Set<String> deletedInHead,
+                                Set<String> deletedInPicked, RevTree baseTree, RevTree headTree, RevTree pickedTree)
+            throws IOException {
+        List<DiffEntry> pickedChanges = getChanges(reader, baseTree, pickedTree);
+
+        // The head may be far from the base, so its renames are only detected when a change of the picked
+        // commit can meet one: a modified, deleted or renamed file that the head does not have anymore, or
+        // an added file that the head added too.
+        boolean headRenamesNeeded = !deletedInHead.isEmpty();
+        for (DiffEntry pickedChange : pickedChanges) {
+            DiffEntry.ChangeType changeType = pickedChange.getChangeType();
+            if ((changeType == DiffEntry.ChangeType.DELETE || changeType == DiffEntry.ChangeType.RENAME)
+                    && getObjectId(reader, headTree, pickedChange.getOldPath()) == null) {
+                headRenamesNeeded = true;
+            }
+            if (conflicts.get(pickedChange.getNewPath()) == ConflictType.ADD_ADD) {
+                headRenamesNeeded = true;
+            }
+        }
+        Map<String, DiffEntry> headRenames = headRenamesNeeded
+                ? getRenames(getChanges(reader, baseTree, headTree)) : Collections.emptyMap();
+        Map<String, DiffEntry> pickedRenames = getRenames(pickedChanges);
+
+        // Renamed on one side and modified on the other.
+        for (String path : deletedInHead) {
+            DiffEntry rename = headRenames.get(path);
+            ObjectId modifiedId = getObjectId(reader, pickedTree, path);
+            if (rename == null || modifiedId == null) continue;
+            conflicts.remove(path);
+            mergeContent(reader, conflicts, conflictRegions, rename.getNewPath(), rename.getNewPath(), path,
+                    rename.getOldId().toObjectId(), rename.getNewId().toObjectId(), modifiedId);
+        }
+        for (String path : deletedInPicked) {
+            DiffEntry rename = pickedRenames.get(path);
+            ObjectId modifiedId = getObjectId(reader, headTree, path);
+            if (rename == null || modifiedId == null) continue;
+            conflicts.remove(path);
+            mergeContent(reader, conflicts, conflictRegions, rename.getNewPath(), path, rename.getNewPath(),
+                    rename.getOldId().toObjectId(), modifiedId, rename.getNewId().toObjectId());
+        }
+
+        for (DiffEntry pickedChange : pickedChanges) {
+            DiffEntry headRename = headRenames.get(pickedChange.getOldPath());
+            String newPath = pickedChange.getNewPath();
+            if (pickedChange.getChangeType() == DiffEntry.ChangeType.DELETE) {
+                if (headRename != null) conflicts.put(headRename.getNewPath(), ConflictType.RENAME_DELETE);
+            } else if (pickedChange.getChangeType() != DiffEntry.ChangeType.RENAME) {
+                continue;
+            } else if (headRename != null && headRename.getNewPath().equals(newPath)) {
+                // Both sides renamed the file alike, ResolveMerger merged the two versions without their base.
+                if (conflicts.remove(newPath) == null) continue;
+                conflictRegions.remove(newPath);
+                mergeContent(reader, conflicts, conflictRegions, newPath, newPath, newPath,
+                        pickedChange.getOldId().toObjectId(), headRename.getNewId().toObjectId(),
+                        pickedChange.getNewId().toObjectId());
+            } else if (headRename != null) {
+                // Like git, the conflict is reported under the path of the head.
+                conflicts.put(headRename.getNewPath(), ConflictType.RENAME_RENAME);
+            } else if (conflicts.get(newPath) == ConflictType.ADD_ADD) {
+                renameAdd(conflicts, conflictRegions, newPath);
+            } else if (!conflicts.containsKey(pickedChange.getOldPath())
+                    && getObjectId(reader, headTree, pickedChange.getOldPath()) == null) {
+                conflicts.put(newPath, ConflictType.RENAME_DELETE);
+            }
+        }
+        for (DiffEntry headRename : headRenames.values()) {
+            if (conflicts.get(headRename.getNewPath()) == ConflictType.ADD_ADD) {
+                renameAdd(conflicts, conflictRegions, headRename.getNewPath());
+            }
+        }
+    }
+
+    /**
+     * Reports an add/add conflict of a file that one side renamed as a rename/add conflict, which has no
+     * regions, like the rename/add conflicts reported by git
+     */
+    private static void renameAdd(Map<String, ConflictType> conflicts, Map<String, List<ConflictRegion>> conflictRegions,
+                                  String path) {
+        conflicts.put(path, ConflictType.RENAME_ADD);
+        conflictRegions.remove(path);
+    }
+
+    /**
+     * Merges the content of a file whose paths differ between the sides. A clean merge adds no conflict,
+     * otherwise the file becomes a content conflict with the regions of the merge.
+     * @param reader reader of the repository
+     * @param conflicts conflict types keyed by path
+     * @param conflictRegions conflict regions keyed by path
+     * @param path path of the merged file
+     * @param oursPath path of the file on the side the commit is picked onto
+     * @param theirsPath path of the file in the picked commit
+     * @param baseId blob of the file in the base
+     * @param oursId blob of the file on the side the commit is picked onto
+     * @param theirsId blob of the file in the picked commit
+     * @throws IOException thrown when a file cannot be read
+     */
+    private static void mergeContent(ObjectReader reader, Map<String, ConflictType> conflicts,
+                                     Map<String, List<ConflictRegion>> conflictRegions, String path, String oursPath,
+                                     String theirsPath, ObjectId baseId, ObjectId oursId, ObjectId theirsId)
+            throws IOException {
+        byte[] base = reader.open(baseId).getBytes();
+        byte[] ours = reader.open(oursId).getBytes();
+        byte[] theirs = reader.open(theirsId).getBytes();
+        if (RawText.isBinary(base) || RawText.isBinary(ours) || RawText.isBinary(theirs)) {
+            conflicts.put(path, ConflictType.CONTENT);
+            return;
+        }
+
+        MergeResult<RawText> mergeResult = new MergeAlgorithm().merge(RawTextComparator.DEFAULT,
+                new RawText(base), new RawText(ours), new RawText(theirs));
+        if (mergeResult.containsConflicts()) {
+            conflicts.put(path, ConflictType.CONTENT);
+            conflictRegions.put(path, getConflictRegions(path, oursPath, theirsPath, mergeResult));
+        }
+    }
+
+    /**
+     * @return changes between two trees, with the renames detected like git diff does
+     */
+    private List<DiffEntry> getChanges(ObjectReader reader, RevTree oldTree, RevTree newTree) throws IOException {
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(oldTree);
+            treeWalk.addTree(newTree);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            RenameDetector renameDetector = new RenameDetector(reader, repository.getConfig().get(DiffConfig.KEY));
+            renameDetector.addAll(DiffEntry.scan(treeWalk));
+            return renameDetector.compute();
+        }
+    }
+
+    /**
+     * @return renames among the changes, keyed by their old path
+     */
+    private static Map<String, DiffEntry> getRenames(List<DiffEntry> changes) {
+        Map<String, DiffEntry> renames = new HashMap<>();
+        for (DiffEntry change : changes) {
+            if (change.getChangeType() == DiffEntry.ChangeType.RENAME) renames.put(change.getOldPath(), change);
+        }
+        return renames;
+    }
+
+    /**
+     * @return blob of a file in a tree, or null when the tree does not have the file
+     */
+    private static ObjectId getObjectId(ObjectReader reader, RevTree tree, String path) throws IOException {
+        try (TreeWalk treeWalk = TreeWalk.forPath(reader, path, tree)) {
+            return treeWalk == null ? null : treeWalk.getObjectId(0);
+        }
+    }
+
+    /**
+     * Types of conflicts reported by the evaluator, named like the conflicts reported by git
+     */
+    public enum ConflictType {
+        CONTENT("content"),
+        ADD_ADD("add/add"),
+        MODIFY_DELETE("modify/delete"),
+        RENAME_RENAME("rename/rename"),
+        RENAME_ADD("rename/add"),
+        RENAME_DELETE("rename/delete");
+
+        private final String name;
+
+        ConflictType(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Line ranges of one conflict chunk in the base and in both sides of the cherry-pick. Start lines
+     * are 1-based; an empty range starts at the line after which it is located, like in a unified diff.
+     * The paths of the sides only differ from the path of the conflicting file when a side renamed it.
+     */
+    public static class ConflictRegion {
+        public final String path, oursPath, theirsPath;
+        public final int baseStartLine, baseLength, oursStartLine, oursLength, theirsStartLine, theirsLength;
+
+        /**
+         *
+         * @param path path of the conflicting file
+         * @param oursPath path of the file on the side the commit is picked onto
+         * @param theirsPath path of the file in the picked commit
+         * @param conflict begin of the base range, begin and end of ours, begin and end of theirs (0-based)
+         * @param baseEnd end of the base range (0-based, exclusive)
+         */
+        ConflictRegion(String path, String oursPath, String theirsPath, int[] conflict, int baseEnd) {
+            this.path = path;
+            this.oursPath = oursPath;
+            this.theirsPath = theirsPath;
+            this.baseStartLine = startLine(conflict[0], baseEnd);
+            this.baseLength = baseEnd - conflict[0];
+            this.oursStartLine = startLine(conflict[1], conflict[2]);
+            this.oursLength = conflict[2] - conflict[1];
+            this.theirsStartLine = startLine(conflict[3], conflict[4]);
+            this.theirsLength = conflict[4] - conflict[3];
+        }
+
+        private static int startLine(int begin, int end) {
+            return end > begin ? begin + 1 : begin;
+        }
+
+        /**
+         * @return start line and length of the region on the side the commit is picked onto
+         */
+        public int[] getOursRange() {
+            return new int[]{oursStartLine, oursLength};
+        }
+
+        /**
+         * @return start line and length of the region in the picked commit
+         */
+        public int[] getTheirsRange() {
+            return new int[]{theirsStartLine, theirsLength};
+        }
+    }
+
+    /**
+     * Outcome of an in-memory cherry-pick
+     */
+    public static class Result {
+        private final boolean conflicting;
+        private final Map<String, ConflictType> conflicts;
+        private final Map<String, List<ConflictRegion>> conflictRegions;
+
+        Result(boolean conflicting, Map<String, ConflictType> conflicts,
+               Map<String, List<ConflictRegion>> conflictRegions) {
+            this.conflicting = conflicting;
+            this.conflicts = conflicts;
+            this.conflictRegions = conflictRegions;
+        }
+
+        public boolean isConflicting() {
+            return conflicting;
+        }
+
+        /**
+         * @return conflict type keyed by the path of every conflicting file
+         */
+        public Map<String, ConflictType> getConflicts() {
+            return conflicts;
+        }
+
+        /**
+         * @return conflict regions keyed by the path of every file with content or add/add conflicts
+         */
+        public Map<String, List<ConflictRegion>> getConflictRegions() {
+            return conflictRegions;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a bare mirror of every analyzed repository under the clone path and hands out
+ * repositories that borrow their objects from those mirrors. The analysis only reads the object
+ * database, so their working trees are never checked out. Re-running the analysis only downloads
+ * the objects that were added to the remote since the previous run.
+ * <p>
+ * A fork mirror borrows the objects of its upstream mirror through git alternates, so the
+ * history shared by all forks of one upstream is stored and downloaded only once. Mirrors
+ * must therefore never be garbage collected on their own, automatic gc is disabled for them.
+ * <p>
+ * In {@link FetchMode#PATCHES} mode the upstream is not mirrored at all. Only the merge commits of
+ * the analyzed patches are fetched by id into the fork mirror, and their ancestry is negotiated
+ * against the fork history, so only the upstream commits that the fork does not share are downloaded.
+ */
+public class CloneManager {
+
+    /**
+     * Controls how much of the source (upstream) repository is fetched
+     */
+    public enum FetchMode {
+        /** mirror all branches and tags of the source repository */
+        ALL,
+        /** fetch only the merge commits of the analyzed patches and their ancestry */
+        PATCHES
+    }
+
+    private static final String MIRRORS_DIR = "mirrors";
+    private static final String MIRROR_REMOTE = "origin";
+    private static final String ALTERNATES_FILE = "objects/info/alternates";
+    private static final String PATCH_REFS = "refs/patches/";
+    private static final String PULL_REFS = "refs/pull/";
+    private static final RefSpec PATCH_REFSPEC = new RefSpec("+" + PATCH_REFS + "*:" + PATCH_REFS + "*");
+    private static final RefSpec[] MIRROR_REFSPECS = {
+            new RefSpec("+refs/heads/*:refs/heads/*"),
+            new RefSpec("+refs/tags/*:refs/tags/*")};
+
+    private final File mirrorsDir;
+    private final Map<File, Object> mirrorLocks = new ConcurrentHashMap<>();
+
+    public CloneManager(String clonePath) {
+        this.mirrorsDir = new File(clonePath, MIRRORS_DIR);
+    }
+
+    /**
+     * Returns the directory of the bare mirror of a repository, e.g. mirrors/apache/kafka.git
+     * @param repoURL URL of the repository
+     * @return mirror directory
+     */
+    public File getMirrorDir(String repoURL) {
+        return new File(mirrorsDir, GitHubUtils.extractRepositoryName(repoURL) + Constants.DOT_GIT_EXT);
+    }
+
+    /**
+     * Brings the bare mirror of a repository up to date with an incremental fetch,
+     * creating the mirror on first use
+     * @param repoURL URL of the repository
+     * @return directory of the updated mirror
+     * @throws GitAPIException thrown when the fetch fails
+     * @throws IOException thrown when the mirror cannot be opened or created
+     * @throws URISyntaxException thrown when the repository URL is invalid
+     */
+    public File updateMirror(String repoURL) throws GitAPIException, IOException, URISyntaxException {
+        return updateMirror(repoURL, null, MIRROR_REFSPECS);
+    }
+
+    /**
+     * Brings the bare mirror of a source (upstream) repository up to date. Besides the branches and tags,
+     * the refs/pull/&lt;n&gt;/head refs of the given pull requests are mirrored, so that they can be
+     * resolved locally. Pull requests without such a ref on the remote are skipped.
+     * @param sourceURL URL of the source repository
+     * @param pullRequests numbers of the pull requests whose head refs are mirrored
+     * @return directory of the updated mirror
+     * @throws GitAPIException thrown when the fetch fails
+     * @throws IOException thrown when the mirror cannot be opened or created
+     * @throws URISyntaxException thrown when the repository URL is invalid
+     * @see PullRequestResolver
+     */
+    public File updateSourceMirror(String sourceURL, int... pullRequests) throws GitAPIException, IOException,
+            URISyntaxException {
+        RefSpec[] refSpecs = Arrays.copyOf(MIRROR_REFSPECS, MIRROR_REFSPECS.length + pullRequests.length);
+        for (int i = 0; i < pullRequests.length; i++) {
+            String pullRef = PULL_REFS + pullRequests[i] + "/head";
+            refSpecs[MIRROR_REFSPECS.length + i] = new RefSpec("+" + pullRef + ":" + pullRef);
+        }
+        return updateMirror(sourceURL, null, refSpecs);
+    }
+
+    /**
+     * Brings the bare mirror of a repository up to date with an incremental fetch,
+     * creating the mirror on first use. When an upstream mirror is given, the mirror borrows
+     * its objects and only the objects that are missing from both mirrors are downloaded.
+     * @param repoURL URL of the repository
+     * @param upstreamMirror mirror of the upstream repository to borrow objects from, or null
+     * @return directory of the updated mirror
+     * @throws GitAPIException thrown when the fetch fails
+     * @throws IOException thrown when the mirror cannot be opened or created
+     * @throws URISyntaxException thrown when the repository URL is invalid
+     */
+    public File updateMirror(String repoURL, File upstreamMirror) throws GitAPIException, IOException,
+            URISyntaxException {
+        return updateMirror(repoURL, upstreamMirror, MIRROR_REFSPECS);
+    }
+
+    private File updateMirror(String repoURL, File upstreamMirror, RefSpec[] refSpecs) throws GitAPIException,
+            IOException, URISyntaxException {
+        File mirrorDir = getMirrorDir(repoURL);
+        String projectName = Utils.getProjectName(repoURL);
+
+        // Several forks of the same upstream may be analyzed in parallel, only one of them updates the mirror.
+        synchronized (mirrorLocks.computeIfAbsent(mirrorDir, key -> new Object())) {
+            if (RepositoryCache.FileKey.isGitRepository(mirrorDir, FS.DETECTED)) {
+                Utils.log(projectName, String.format("Updating mirror of %s...", projectName));
+            } else {
+                Utils.log(projectName, String.format("Creating mirror of %s...", projectName));
+                createMirror(repoURL, mirrorDir);
+            }
+            if (upstreamMirror != null) {
+                addAlternate(mirrorDir, upstreamMirror);
+            }
+
+            // The alternates are read when the repository is opened, so open it only after they were written.
+            Git git = Git.open(mirrorDir);
+            try {
+                Map<String, Ref> remoteRefs = git.lsRemote().setRemote(MIRROR_REMOTE).callAsMap();
+                // Fetching a single ref that the remote does not have fails the whole fetch.
+                List<RefSpec> availableRefSpecs = new ArrayList<>();
+                for (RefSpec refSpec : refSpecs) {
+                    if (refSpec.isWildcard() || remoteRefs.containsKey(refSpec.getSource())) {
+                        availableRefSpecs.add(refSpec);
+                    }
+                }
+                Ref remoteHead = remoteRefs.get(Constants.HEAD);
+                git.fetch()
+                        .setRemote(MIRROR_REMOTE)
+                        .setRefSpecs(availableRefSpecs)
+                        .setTagOpt(TagOpt.NO_TAGS)
+                        .setRemoveDeletedRefs(true)
+                        .call();
+                updateHead(git.getRepository(), remoteHead);
+            } finally {
+                git.close();
+            }
+        }
+        return mirrorDir;
+    }
+
+    /**
+     * Creates a fresh working tree of a fork from its up-to-date mirror. The source mirror is
+     * updated first and shared with the fork mirror, the working tree references the objects
+     * of both mirrors instead of copying them (git clone --shared).
+     * @param forkURL URL of the fork repository
+     * @param sourceURL URL of the upstream repository of the fork
+     * @param workTree directory of the working tree, it must not exist yet
+     * @param pullRequests numbers of the analyzed pull requests of the upstream repository
+     * @throws GitAPIException thrown when the mirrors cannot be updated
+     * @throws IOException thrown when the working tree cannot be created
+     * @throws URISyntaxException thrown when a repository URL is invalid
+     */
+    public void checkout(String forkURL, String sourceURL, File workTree, int... pullRequests)
+            throws GitAPIException, IOException, URISyntaxException {
+        File sourceMirror = updateSourceMirror(sourceURL, pullRequests);
+        File mirrorDir = updateMirror(forkURL, sourceMirror);
+        createWorkTree(forkURL, mirrorDir, workTree);
+    }
+
+    /**
+     * Creates a fresh working tree of a fork that contains the merge commits of the given patches
+     * under refs/patches/&lt;source name&gt;/&lt;patch number&gt;. Only the patch commits that are not in the
+     * fork mirror yet are fetched from the source repository, using one explicit refspec per commit.
+     * @param forkURL URL of the fork repository
+     * @param sourceURL URL of the upstream repository of the fork
+     * @param patchCommits merge commit ids of the patches, keyed by patch (pull request) number
+     * @param workTree directory of the working tree, it must not exist yet
+     * @throws GitAPIException thrown when a fetch fails
+     * @throws IOException thrown when the working tree cannot be created
+     * @throws URISyntaxException thrown when a repository URL is invalid
+     */
+    public void checkoutPatches(String forkURL, String sourceURL, Map<Integer, String> patchCommits, File workTree)
+            throws GitAPIException, IOException, URISyntaxException {
+        File mirrorDir = updateMirror(forkURL);
+        synchronized (mirrorLocks.computeIfAbsent(mirrorDir, key -> new Object())) {
+            fetchPatches(mirrorDir, sourceURL, patchCommits);
+        }
+        createWorkTree(forkURL, mirrorDir, workTree);
+
+        // The objects are borrowed from the mirror, this only creates the patch refs.
+        try (Git git = Git.open(workTree)) {
+            git.fetch()
+                    .setRemote(Constants.DEFAULT_REMOTE_NAME)
+                    .setRefSpecs(PATCH_REFSPEC)
+                    .setTagOpt(TagOpt.NO_TAGS)
+                    .call();
+        }
+    }
+
+    /**
+     * Clones a repository that references the objects of a mirror, its files are not checked out
+     * @param repoURL URL of the mirrored repository
+     * @param mirrorDir directory of the mirror
+     * @param workTree directory of the working tree, it must not exist yet
+     * @throws IOException thrown when the working tree cannot be created
+     */
+    private void createWorkTree(String repoURL, File mirrorDir, File workTree) throws IOException {
+        Utils.log(Utils.getProjectName(repoURL), String.format("Creating working tree of %s...", workTree.getName()));
+        cloneShared(mirrorDir, workTree);
+    }
+
+    /**
+     * Clones a repository that references the objects of another one instead of copying them, without
+     * checking out its files (git clone --shared --no-checkout)
+     * @param repository directory of the repository to clone
+     * @param workTree directory of the working tree, it must not exist yet
+     * @throws IOException thrown when the working tree cannot be created
+     */
+    private static void cloneShared(File repository, File workTree) throws IOException {
+        File parentDir = workTree.getAbsoluteFile().getParentFile();
+        parentDir.mkdirs();
+
+        String cloneOutput = Utils.runSystemCommand(parentDir.getAbsolutePath(),
+                "git", "clone", "--shared", "--no-checkout", repository.getAbsolutePath(), workTree.getName());
+        if (!RepositoryCache.FileKey.isGitRepository(new File(workTree, Constants.DOT_GIT), FS.DETECTED)) {
+            throw new IOException("Could not create working tree " + workTree + ":\n" + cloneOutput);
+        }
+    }
+
+    /**
+     * Fetches the merge commits of the patches from the source repository into a mirror. Patches
+     * whose ref already points to the expected commit are not fetched again.
+     * @param mirrorDir directory of the fork mirror
+     * @param sourceURL URL of the source repository
+     * @param patchCommits merge commit ids of the patches, keyed by patch (pull request) number
+     * @throws GitAPIException thrown when the fetch fails
+     * @throws IOException thrown when the mirror cannot be opened
+     */
+    private void fetchPatches(File mirrorDir, String sourceURL, Map<Integer, String> patchCommits)
+            throws GitAPIException, IOException {
+        String sourceName = Utils.getProjectName(sourceURL);
+        String refPrefix = PATCH_REFS + sourceName + "/";
+
+        try (Git git = Git.open(mirrorDir)) {
+            Repository repository = git.getRepository();
+            Map<String, ObjectId> missingRefs = new LinkedHashMap<>();
+            List<RefSpec> refSpecs = new ArrayList<>();
+            for (Map.Entry<Integer, String> patchCommit : patchCommits.entrySet()) {
+                if (patchCommit.getValue() == null) continue;
+
+                String refName = refPrefix + patchCommit.getKey();
+                ObjectId commitId = ObjectId.fromString(patchCommit.getValue());
+                Ref ref = repository.exactRef(refName);
+                if (ref == null || !commitId.equals(ref.getObjectId())) {
+                    missingRefs.put(refName, commitId);
+                    refSpecs.add(new RefSpec("+" + commitId.getName() + ":" + refName));
+                }
+            }
+            if (missingRefs.isEmpty()) {
+                Utils.log(sourceName, String.format("All patches of %s were already fetched", sourceName));
+                return;
+            }
+
+            Utils.log(sourceName, String.format("Fetching %d patch commit(s) of %s...", missingRefs.size(), sourceName));
+            git.fetch()
+                    .setRemote(sourceURL)
+                    .setRefSpecs(refSpecs)
+                    .setTagOpt(TagOpt.NO_TAGS)
+                    .call();
+
+            // JGit only downloads commits that are requested by id, the refs are created here.
+            for (Map.Entry<String, ObjectId> missingRef : missingRefs.entrySet()) {
+                RefUpdate refUpdate = repository.updateRef(missingRef.getKey());
+                refUpdate.setNewObjectId(missingRef.getValue());
+                refUpdate.setForceUpdate(true);
+                refUpdate.update();
+            }
+        }
+    }
+
+    /**
+     * Initializes an empty bare mirror whose origin remote points to the repository
+     * @param repoURL URL of the repository
+     * @param mirrorDir directory of the mirror
+     * @throws GitAPIException thrown when the repository cannot be initialized
+     * @throws IOException thrown when the configuration cannot be saved
+     * @throws URISyntaxException thrown when the repository URL is invalid
+     */
+    private void createMirror(String repoURL, File mirrorDir) throws GitAPIException, IOException, URISyntaxException {
+        try (Git git = Git.init().setBare(true).setDirectory(mirrorDir).call()) {
+            git.remoteAdd()
+                    .setName(MIRROR_REMOTE)
+                    .setUri(new URIish(repoURL))
+                    .call();
+
+            StoredConfig config = git.getRepository().getConfig();
+            config.setInt(ConfigConstants.CONFIG_GC_SECTION, null, ConfigConstants.CONFIG_KEY_AUTO, 0);
+            config.save();
+        }
+    }
+
+    /**
+     * Lets a mirror borrow the objects of another mirror by listing its object
+     * directory in objects/info/alternates
+     * @param mirrorDir directory of the borrowing mirror
+     * @param upstreamMirror directory of the mirror whose objects are borrowed
+     * @throws IOException thrown when the alternates file cannot be written
+     */
+    private void addAlternate(File mirrorDir, File upstreamMirror) throws IOException {
+        Path alternates = new File(mirrorDir, ALTERNATES_FILE).toPath();
+        String upstreamObjects = new File(upstreamMirror, Constants.OBJECTS).getAbsolutePath();
+
+        List<String> lines = Files.exists(alternates) ? Files.readAllLines(alternates) : new ArrayList<>();
+        if (!lines.contains(upstreamObjects)) {
+            lines.add(upstreamObjects);
+            Files.createDirectories(alternates.getParent());
+            Files.write(alternates, lines);
+        }
+    }
+
+    /**
+     * Points HEAD of the mirror to the default branch of the remote so that
+     * working trees check out the same branch as a regular clone would
+     * @param repository mirror repository
+     * @param remoteHead HEAD advertised by the remote
+     * @throws IOException thrown when HEAD cannot be updated
+     */
+    private void updateHead(Repository repository, Ref remoteHead) throws IOException {
+        if (remoteHead == null || !remoteHead.isSymbolic()) return;
+
+        RefUpdate headUpdate = repository.updateRef(Constants.HEAD);
+        headUpdate.disableRefLog();
+        headUpdate.link(remoteHead.getTarget().getName());
+    }
+}
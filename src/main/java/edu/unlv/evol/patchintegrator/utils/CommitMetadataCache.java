@@ -0,0 +1,89 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Author and timestamp of the commits of one repository, kept in a bounded LRU cache. The same
+ * commits show up in many history rows, so every commit is parsed once with a single reusable
+ * {@link ObjectReader} instead of a new RevWalk per row. The cache can be shared by several threads.
+ */
+public class CommitMetadataCache implements AutoCloseable {
+
+    public static final int DEFAULT_SIZE = 10000;
+
+    private final ObjectReader reader;
+    private final Map<ObjectId, CommitMetadata> cache;
+
+    public CommitMetadataCache(Repository repository) {
+        this(repository, DEFAULT_SIZE);
+    }
+
+    public CommitMetadataCache(Repository repository, int size) {
+        this.reader = repository.newObjectReader();
+        this.cache = new LinkedHashMap<ObjectId, CommitMetadata>(Math.min(size, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ObjectId, CommitMetadata> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * @param commitHash full commit id
+     * @return metadata of the commit, or null when the id is invalid or the commit cannot be read
+     */
+    public synchronized CommitMetadata get(String commitHash) {
+        if (commitHash == null || !ObjectId.isId(commitHash)) return null;
+
+        ObjectId commitId = ObjectId.fromString(commitHash);
+        CommitMetadata metadata = cache.get(commitId);
+        if (metadata == null) {
+            try {
+                byte[] raw = reader.open(commitId, Constants.OBJ_COMMIT).getCachedBytes();
+                metadata = new CommitMetadata(RevCommit.parse(raw));
+            } catch (IOException | IllegalArgumentException e) {
+                return null;
+            }
+            cache.put(commitId, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * @param commit commit that is already parsed, its metadata is added to the cache
+     * @return metadata of the commit
+     */
+    public synchronized CommitMetadata get(RevCommit commit) {
+        return cache.computeIfAbsent(commit.copy(), id -> new CommitMetadata(commit));
+    }
+
+    @Override
+    public synchronized void close() {
+        reader.close();
+        cache.clear();
+    }
+
+    /**
+     * Author name, author email and commit time of a commit
+     */
+    public static class CommitMetadata {
+        public final String authorName, authorEmail;
+        public final int timestamp;
+
+        CommitMetadata(RevCommit commit) {
+            PersonIdent author = commit.getAuthorIdent();
+            this.authorName = author.getName();
+            this.authorEmail = author.getEmailAddress();
+            this.timestamp = commit.getCommitTime();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks up commits by full or abbreviated id directly in the object database (including alternates),
+ * instead of walking the history of every ref. Abbreviated ids are resolved through the pack indexes
+ * and remembered, so every id is resolved once and all commits are parsed by one shared walk.
+ */
+public class CommitResolver implements AutoCloseable {
+
+    private final RevWalk walk;
+    private final Map<String, List<ObjectId>> resolvedIds = new HashMap<>();
+
+    public CommitResolver(Repository repository) {
+        this.walk = new RevWalk(repository);
+    }
+
+    /**
+     * Finds the commits with an id
+     * @param commitId full or abbreviated commit id
+     * @return the commit, all matching commits for an ambiguous abbreviated id, or no commit when
+     * the id is invalid or the commit is not in the repository
+     * @throws IOException thrown when an object cannot be read
+     */
+    public synchronized List<RevCommit> resolve(String commitId) throws IOException {
+        List<ObjectId> ids = resolvedIds.get(commitId);
+        if (ids == null) {
+            ids = lookup(commitId);
+            resolvedIds.put(commitId, ids);
+        }
+
+        List<RevCommit> commits = new ArrayList<>();
+        for (ObjectId id : ids) {
+            commits.add(walk.parseCommit(id));
+        }
+        return commits;
+    }
+
+    private List<ObjectId> lookup(String commitId) throws IOException {
+        ObjectReader reader = walk.getObjectReader();
+        List<ObjectId> candidates = new ArrayList<>();
+        if (ObjectId.isId(commitId)) {
+            ObjectId id = ObjectId.fromString(commitId);
+            if (reader.has(id)) candidates.add(id);
+        } else if (AbbreviatedObjectId.isId(commitId)) {
+            candidates.addAll(reader.resolve(AbbreviatedObjectId.fromString(commitId)));
+        } else {
+            return Collections.emptyList();
+        }
+
+        List<ObjectId> ids = new ArrayList<>();
+        for (ObjectId candidate : candidates) {
+            RevObject object = walk.parseAny(candidate);
+            if (object instanceof RevCommit) ids.add(object.copy());
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized void close() {
+        walk.close();
+    }
+}
@@ -0,0 +1,339 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.kohsuke.github.AbuseLimitHandler;
+import org.kohsuke.github.GHIOException;
+import org.kohsuke.github.GHRateLimit;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.GitHubBuilder;
+import org.kohsuke.github.HttpException;
+import org.kohsuke.github.RateLimitHandler;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Sends all GitHub requests of a run through a shared set of clients, one per OAuth token. The remaining
+ * requests and the reset of the core rate limit of every client, counted down locally and read again from
+ * the rate limit API now and then, decide which client sends the next request. When the quota of a client
+ * gets low, its requests are spread evenly until the reset, and when all clients are used up the requests
+ * wait for the earliest reset instead of failing. Requests that were rejected for their rate limit are
+ * retried with another client: a rejection by the core rate limit uses the client up until the reset of its
+ * response, a rejection by the secondary rate limit only pauses the client for its Retry-After.
+ * <p>
+ * The tokens are read from the comma-separated OAuthToken property of github-oauth.properties, an
+ * optional Endpoint property points the clients to another API server, e.g. GitHub Enterprise.
+ */
+public class GitHubScheduler {
+
+    public static final String PROPERTIES_FILE = "github-oauth.properties";
+
+    private static final Logger logger = Logger.getLogger(GitHubScheduler.class.getName());
+    private static final int RESERVED_REQUESTS = 10;
+    private static final int PACING_THRESHOLD = 100;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long MAX_WAIT_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long SECONDARY_RATE_LIMIT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int RATE_LIMIT_UPDATE_REQUESTS = 100;
+
+    /**
+     * A request that is sent with the client chosen by the scheduler
+     */
+    public interface GitHubRequest<T> {
+        T send(GitHub gitHub) throws IOException;
+    }
+
+    private final List<GitHub> clients;
+    private final int[] remaining;
+    private final long[] resetMillis;
+    private final long[] nextRequestMillis;
+    private final long[] pausedUntilMillis;
+    private final int[] requestsSinceUpdate;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong waitMillis = new AtomicLong();
+
+    public GitHubScheduler(List<GitHub> clients) {
+        if (clients.isEmpty()) throw new IllegalArgumentException("At least one GitHub client is needed");
+        this.clients = new ArrayList<>(clients);
+        this.remaining = new int[clients.size()];
+        this.resetMillis = new long[clients.size()];
+        this.nextRequestMillis = new long[clients.size()];
+        this.pausedUntilMillis = new long[clients.size()];
+        this.requestsSinceUpdate = new int[clients.size()];
+        for (int i = 0; i < clients.size(); i++) {
+            remaining[i] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Creates one client per token of a properties file, or an anonymous client when there is no token
+     * @param propertiesFile properties file with the OAuthToken and the optional Endpoint property
+     * @return the scheduler
+     * @throws IOException thrown when a client cannot be created
+     */
+    public static GitHubScheduler fromProperties(String propertiesFile) throws IOException {
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(propertiesFile)) {
+            prop.load(input);
+        } catch (FileNotFoundException e) {
+            logger.warning("File " + propertiesFile + " was not found, connecting to GitHub anonymously");
+        }
+
+        // Rejected requests are handed back to the scheduler instead of blocking the thread in the client.
+        GitHubBuilder builder = new GitHubBuilder().withRateLimitHandler(RateLimitHandler.FAIL)
+                .withAbuseLimitHandler(AbuseLimitHandler.FAIL);
+        String endpoint = prop.getProperty("Endpoint");
+        if (endpoint != null) builder = builder.withEndpoint(endpoint.trim());
+
+        List<GitHub> clients = new ArrayList<>();
+        String oAuthTokens = prop.getProperty("OAuthToken");
+        if (oAuthTokens != null) {
+            for (String oAuthToken : oAuthTokens.split(",")) {
+                if (oAuthToken.trim().isEmpty()) continue;
+                clients.add(builder.clone().withOAuthToken(oAuthToken.trim()).build());
+            }
+            logger.info(String.format("Connected to GitHub with %d OAuth token(s)", clients.size()));
+        }
+        if (clients.isEmpty()) {
+            clients.add(builder.build());
+        }
+        return new GitHubScheduler(clients);
+    }
+
+    /**
+     * Sends a request with the client that has the most requests left, waiting as long as the rate limits require
+     * @param request the request
+     * @return result of the request
+     * @throws IOException thrown when the request fails for another reason than the rate limit
+     */
+    public <T> T schedule(GitHubRequest<T> request) throws IOException {
+        maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                int client = acquireClient();
+                boolean rejected = false;
+                try {
+                    return request.send(clients.get(client));
+                } catch (IOException e) {
+                    rejected = isRateLimited(e);
+                    if (rejected) rateLimited(client, e);
+                    if (!rejected || attempt >= MAX_ATTEMPTS) throw e;
+                } finally {
+                    requests.incrementAndGet();
+                    // The rate limit of a rejected request was already taken from its response.
+                    if (!rejected) updateRateLimit(client);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the GitHub rate limit", e);
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reserves a request of the client with the most requests left and waits for its turn
+     * @return index of the client
+     */
+    private int acquireClient() throws InterruptedException {
+        int client;
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            client = 0;
+            for (int i = 1; i < clients.size(); i++) {
+                if (available(i, now) > available(client, now)) client = i;
+            }
+
+            if (available(client, now) > 0) {
+                wait = Math.max(0, nextRequestMillis[client] - now);
+                nextRequestMillis[client] = now + wait + pacingInterval(client, now);
+            } else {
+                // Every client is used up or paused, the request waits for the client that is available first.
+                client = 0;
+                for (int i = 1; i < clients.size(); i++) {
+                    if (availableMillis(i) < availableMillis(client)) client = i;
+                }
+                wait = Math.min(Math.max(0, availableMillis(client) - now), MAX_WAIT_MILLIS);
+                nextRequestMillis[client] = now + wait;
+            }
+            if (remaining[client] != Integer.MAX_VALUE && remaining[client] > 0) remaining[client]--;
+        }
+
+        if (wait > 0) {
+            waitMillis.addAndGet(wait);
+            if (wait >= TimeUnit.SECONDS.toMillis(1)) {
+                Utils.log(null, String.format("Waiting %d s for the GitHub rate limit, %d request(s) queued",
+                        TimeUnit.MILLISECONDS.toSeconds(wait), queueDepth.get()));
+            }
+            Thread.sleep(wait);
+        }
+        return client;
+    }
+
+    private int available(int client, long now) {
+        if (pausedUntilMillis[client] > now) return Integer.MIN_VALUE;
+        if (remaining[client] == Integer.MAX_VALUE || resetMillis[client] <= now) return Integer.MAX_VALUE;
+        return remaining[client] - RESERVED_REQUESTS;
+    }
+
+    /**
+     * @return time when a client that is used up or paused can send again
+     */
+    private long availableMillis(int client) {
+        boolean usedUp = remaining[client] != Integer.MAX_VALUE && remaining[client] <= RESERVED_REQUESTS;
+        return Math.max(pausedUntilMillis[client], usedUp ? resetMillis[client] : 0);
+    }
+
+    /**
+     * Spreads the last requests of a client evenly until its reset
+     */
+    private long pacingInterval(int client, long now) {
+        int available = available(client, now);
+        if (available >= PACING_THRESHOLD) return 0;
+        return Math.max(0, resetMillis[client] - now) / Math.max(1, available);
+    }
+
+    /**
+     * Reads the core rate limit of a client from the rate limit API, which does not count against it, when
+     * its window is over or unknown and every {@value #RATE_LIMIT_UPDATE_REQUESTS} requests, so that
+     * requests sent with the same token by other programs are noticed. The requests in between are only
+     * counted down.
+     */
+    private void updateRateLimit(int client) {
+        synchronized (this) {
+            if (resetMillis[client] > System.currentTimeMillis()
+                    && ++requestsSinceUpdate[client] < RATE_LIMIT_UPDATE_REQUESTS) return;
+            requestsSinceUpdate[client] = 0;
+        }
+
+        GHRateLimit.Record core;
+        try {
+            core = clients.get(client).getRateLimit().getCore();
+        } catch (IOException e) {
+            logger.warning("Cannot read the GitHub rate limit: " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (core instanceof GHRateLimit.UnknownLimitRecord) {
+                // The server has no rate limit, e.g. GitHub Enterprise with rate limiting disabled.
+                remaining[client] = Integer.MAX_VALUE;
+                resetMillis[client] = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+                return;
+            }
+            long reset = core.getResetEpochSeconds() * 1000;
+            if (reset > resetMillis[client] || remaining[client] == Integer.MAX_VALUE) {
+                // A new rate limit window started, its quota replaces the estimate of the old one.
+                remaining[client] = core.getRemaining();
+                resetMillis[client] = reset;
+            } else {
+                remaining[client] = Math.min(remaining[client], core.getRemaining());
+            }
+        }
+    }
+
+    /**
+     * Takes the rate limit of a client from a rejected response. A rejection by the core rate limit reports
+     * no remaining requests and the reset of the window, and uses the client up until then. A rejection by
+     * the secondary rate limit only pauses the client, for its Retry-After or else for a minute, and leaves
+     * the core window as it is.
+     */
+    private synchronized void rateLimited(int client, IOException e) {
+        long now = System.currentTimeMillis();
+        Map<String, List<String>> headers = responseHeaders(e);
+        String remainingHeader = header(headers, "X-RateLimit-Remaining");
+        String resetHeader = header(headers, "X-RateLimit-Reset");
+        String retryAfterHeader = header(headers, "Retry-After");
+
+        if (retryAfterHeader == null && "0".equals(remainingHeader) && resetHeader != null) {
+            try {
+                remaining[client] = 0;
+                resetMillis[client] = Math.max(now, Long.parseLong(resetHeader.trim()) * 1000);
+                return;
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        long pause = SECONDARY_RATE_LIMIT_MILLIS;
+        if (retryAfterHeader != null) {
+            try {
+                pause = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfterHeader.trim()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        pausedUntilMillis[client] = Math.max(pausedUntilMillis[client], now + pause);
+    }
+
+    private static Map<String, List<String>> responseHeaders(IOException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GHIOException && ((GHIOException) cause).getResponseHeaderFields() != null) {
+                return ((GHIOException) cause).getResponseHeaderFields();
+            }
+        }
+        return null;
+    }
+
+    private static String header(Map<String, List<String>> headers, String name) {
+        if (headers == null) return null;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The rate limit handlers wrap the rejected response in an IOException, so the causes are searched too
+     */
+    private static boolean isRateLimited(IOException e) {
+        Map<String, List<String>> headers = responseHeaders(e);
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (!(cause instanceof HttpException)) continue;
+            int responseCode = ((HttpException) cause).getResponseCode();
+            if (responseCode == 429) return true;
+            if (responseCode != 403) continue;
+            if ("0".equals(header(headers, "X-RateLimit-Remaining")) || header(headers, "Retry-After") != null) {
+                return true;
+            }
+            String message = cause.getMessage() == null ? "" : cause.getMessage().toLowerCase();
+            if (message.contains("rate limit") || message.contains("abuse")) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of requests that are waiting or being sent
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return total time that requests waited for the rate limits, in milliseconds
+     */
+    public long getWaitMillis() {
+        return waitMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("GitHub requests: %d sent with %d token(s), waited %d s for rate limits, "
+                        + "at most %d request(s) queued", requests.get(), clients.size(),
+                TimeUnit.MILLISECONDS.toSeconds(waitMillis.get()), maxQueueDepth.get());
+    }
+}
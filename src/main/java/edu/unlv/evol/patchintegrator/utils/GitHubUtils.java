@@ -5,21 +5,20 @@ import org.kohsuke.github.GHPullRequest;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GitHub;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
-import java.util.Properties;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class GitHubUtils {
     private static final String GITHUB_URL = "https://github.com/";
     private static final String BITBUCKET_URL = "https://bitbucket.org/";
-    private static final Logger logger = Logger.getLogger(GitHubUtils.class.getName());
-    private GitHub gitHub;
+    // One scheduler and one lookup per repository and client for the whole run, all instances share them.
+    private static GitHubScheduler scheduler;
+    private static final Map<GitHub, Map<String, GHRepository>> repositories = new ConcurrentHashMap<>();
 
     public GitHubUtils() {
 
@@ -30,7 +29,7 @@ public class GitHubUtils {
      * @param cloneURL
      * @return
      */
-    private static String extractRepositoryName(String cloneURL) {
+    static String extractRepositoryName(String cloneURL) {
         int hostLength = 0;
         if (cloneURL.startsWith(GITHUB_URL)) {
             hostLength = GITHUB_URL.length();
@@ -47,31 +46,22 @@ public class GitHubUtils {
     }
 
     /**
-     * establish connection to GitHub using OAuthToken
-     * @return instance of GitHub connection
+     * creates the scheduler of the GitHub requests from the OAuth tokens in github-oauth.properties
+     * @return the scheduler shared by all instances
+     * @throws IOException
      */
-    private GitHub connectToGitHub() {
-        if (gitHub == null) {
-            try {
-                Properties prop = new Properties();
-                InputStream input = new FileInputStream("github-oauth.properties");
-                prop.load(input);
-                String oAuthToken = prop.getProperty("OAuthToken");
-                if (oAuthToken != null) {
-                    gitHub = GitHub.connectUsingOAuth(oAuthToken);
-                    if (gitHub.isCredentialValid()) {
-                        logger.info("Connected to GitHub with OAuth token");
-                    }
-                } else {
-                    gitHub = GitHub.connect();
-                }
-            } catch (FileNotFoundException e) {
-                logger.warning("File github-oauth.properties was not found in RefactoringMiner's execution directory " + e);
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-            }
+    private static synchronized GitHubScheduler getScheduler() throws IOException {
+        if (scheduler == null) {
+            scheduler = GitHubScheduler.fromProperties(GitHubScheduler.PROPERTIES_FILE);
         }
-        return gitHub;
+        return scheduler;
+    }
+
+    /**
+     * @return number of sent requests, rate limit waits and queue depth of the GitHub requests of this run
+     */
+    public static synchronized String getRequestStatistics() {
+        return scheduler == null ? "GitHub requests: none sent" : scheduler.toString();
     }
 
     /**
@@ -83,13 +73,25 @@ public class GitHubUtils {
      * @see GHPullRequest
      */
     public List<GHPullRequest> getPullRequestsInRepo(String cloneURL, GHIssueState status) throws IOException {
+        return getScheduler().schedule(gitHub -> getRepository(gitHub, cloneURL).getPullRequests(status));
+    }
 
-        GitHub gitHub = connectToGitHub();
-
+    /**
+     * looks up a repository once per run and client, a repository sends its requests with the client that looked it up
+     * @param gitHub the client chosen by the scheduler
+     * @param cloneURL the url of the repository
+     * @return the GitHub repository
+     * @throws IOException
+     */
+    private GHRepository getRepository(GitHub gitHub, String cloneURL) throws IOException {
         String repoName = extractRepositoryName(cloneURL);
-        GHRepository repository = gitHub.getRepository(repoName);
-
-        return repository.getPullRequests(status);
+        Map<String, GHRepository> clientRepositories = repositories.computeIfAbsent(gitHub, client -> new ConcurrentHashMap<>());
+        GHRepository repository = clientRepositories.get(repoName);
+        if (repository == null) {
+            repository = gitHub.getRepository(repoName);
+            clientRepositories.put(repoName, repository);
+        }
+        return repository;
     }
 
     /**
@@ -100,34 +102,66 @@ public class GitHubUtils {
      * @throws IOException
      */
     public  String getMergeCommitSha( String cloneURL, int pr) throws IOException {
-        GitHub gitHub = connectToGitHub();
-
-        String repoName = extractRepositoryName(cloneURL);
-        GHRepository repository = gitHub.getRepository(repoName);
-        return repository.getPullRequest(pr).getMergeCommitSha();
+        return getScheduler().schedule(gitHub -> getRepository(gitHub, cloneURL).getPullRequest(pr).getMergeCommitSha());
     }
 
     /**
      * extracts the merge commit sha of list of pull request
      * @param cloneURL the url of the repository to be cloned
      * @param pr pull request number
-     * @return ArrayList of merge commit sha
+     * @return ArrayList of merge commit sha, in the order of the pull requests, null for a pull request that could not be read
      * @throws IOException
      */
     public ArrayList<String> getMergeCommitShaList(String cloneURL, int...pr) throws IOException {
         ArrayList<String> mergeCommitSha = new ArrayList<>();
-        String repoName = extractRepositoryName(cloneURL);
-        GHRepository repository = gitHub.getRepository(repoName);
+        getPullRequestInfoList(cloneURL, pr).forEach(
+                info -> mergeCommitSha.add(info == null ? null : info.mergeCommitSha));
+        return mergeCommitSha;
+    }
+
+    /**
+     * extracts the merge commit sha, title, base branch and merge date of list of pull request.
+     * Every pull request is requested on its own: a pull request read from the paged list is refreshed
+     * with a request of its own before it returns its merge commit sha, and conditional requests need
+     * an HTTP cache in the connector. Callers only pass the pull requests that are not cached yet.
+     * @param cloneURL the url of the repository to be cloned
+     * @param pr pull request number
+     * @return ArrayList of pull request metadata, in the order of the pull requests, null for a pull request that could not be read
+     * @throws IOException thrown when the repository cannot be read
+     */
+    public ArrayList<PullRequestInfo> getPullRequestInfoList(String cloneURL, int...pr) throws IOException {
+        ArrayList<PullRequestInfo> pullRequests = new ArrayList<>();
+        GitHubScheduler scheduler = getScheduler();
         Arrays.stream(pr).forEach(
                 item -> {
                     try {
-                        mergeCommitSha.add(repository.getPullRequest(item).getMergeCommitSha());
+                        GHPullRequest pullRequest = scheduler.schedule(gitHub -> getRepository(gitHub, cloneURL).getPullRequest(item));
+                        pullRequests.add(new PullRequestInfo(item, pullRequest.getMergeCommitSha(),
+                                pullRequest.getTitle(), pullRequest.getBase().getRef(), pullRequest.getMergedAt()));
                     } catch (IOException e) {
                         e.printStackTrace();
+                        pullRequests.add(null);
                     }
                 }
         );
 
-        return mergeCommitSha;
+        return pullRequests;
+    }
+
+    /**
+     * Metadata of a pull request, mergedAt is null when the pull request was not merged
+     */
+    public static class PullRequestInfo {
+        public final int number;
+        public final String mergeCommitSha, title, baseRef;
+        public final Date mergedAt;
+
+        public PullRequestInfo(int number, String mergeCommitSha, String title, String baseRef, Date mergedAt) {
+            this.number = number;
+            this.mergeCommitSha = mergeCommitSha;
+            this.title = title;
+            this.baseRef = baseRef;
+            this.mergedAt = mergedAt;
+        }
     }
 }
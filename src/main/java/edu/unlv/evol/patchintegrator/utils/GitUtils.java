@@ -3,38 +3,23 @@ package edu.unlv.evol.patchintegrator.utils;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.errors.StopWalkException;
-import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.revwalk.filter.RevFilter;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-public class GitUtils {
-
-    private static final Pattern PATTERN_CONFLICT_RENAME_RENAME = Pattern.compile("CONFLICT \\((rename\\/rename)\\): Rename \"?[^\"]+\"?->\"?([^\"]+)\"? in .+ [Rr]ename \"?[^\"]+\"?->\"?[^\"]+\"? in .+");
-    private static final Pattern PATTERN_CONFLICT_RENAME_ADD = Pattern.compile("CONFLICT \\((rename\\/add)\\): Rename \"?[^\"]+\"?->\"?([^\"]+)\"? in \\S+ \"?[^\"]+\"? added in .+");
-    private static final Pattern PATTERN_CONFLICT_DELETE = Pattern.compile("CONFLICT \\(((?:rename|modify)\\/delete)\\): \"?([^\"]+)\"? deleted in .+ and (?:renamed|modified) .+");
-    private static final Pattern PATTERN_CONFLICT_CONTENT = Pattern.compile("CONFLICT \\(((?:content|add\\/add))\\): Merge conflict in \"?([^\"]+)\"?");
-    private static final Pattern PATTERN_DIFF_PATH = Pattern.compile("(?:\\-\\-\\-|\\+\\+\\+) (?:a\\/|b\\/)?([\\s\\S]+)");
-    private static final Pattern PATTERN_DIFF_RANGE = Pattern.compile("\\@\\@ \\-(\\d+),(\\d+) \\+(\\d+),(\\d+) \\@\\@[\\s\\S]*");
-    private static final Pattern PATTERN_COMBINED_DIFF_RANGE = Pattern.compile("\\@\\@\\@ \\-(\\d+),(\\d+) \\-(\\d+),(\\d+) \\+(\\d+),(\\d+) \\@\\@\\@[\\s\\S]*");
-    private static final Pattern PATTERN_LOG_COMMIT = Pattern.compile("commit ([\\dabcdef]{40})");
+public class GitUtils implements AutoCloseable {
 
     private Git git;
-
-    public GitUtils(File repoDir) throws IOException, GitAPIException {
-        git = Git.open(repoDir);
-        gitReset();
-    }
+    private CommitResolver commitResolver;
 
     public GitUtils(Git git)  {
         this.git = git;
@@ -74,249 +59,95 @@ public class GitUtils {
     /**
      * Get RevCommit object of a specific commit identified by
      * the pull request merge commit id
-     * @param pullRequestCommitId merge commit id of the pull request
-     * @return revcommit object
+     * @param pullRequestCommitId full or abbreviated merge commit id of the pull request
+     * @return revcommit object, or no commit when it is not in the repository
      * @see RevCommit
+     * @see CommitResolver
      */
     public Iterable<RevCommit> getMergeCommit(String pullRequestCommitId) {
         try {
-            return git.log().all().setRevFilter(new RevFilter() {
-                @Override
-                public boolean include(RevWalk revWalk, RevCommit revCommit) throws StopWalkException {
-                    return revCommit.startsWith(AbbreviatedObjectId.fromString(pullRequestCommitId));
-                }
-
-                @Override
-                public RevFilter clone() {
-                    return this;
-                }
-            }).call();
-        } catch (IOException | GitAPIException e) {
+            return getCommitResolver().resolve(pullRequestCommitId);
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return null;
+        return Collections.emptyList();
     }
 
-    /**
-     * Extracts the last commit at HEAD of the repository
-     * @return last commit in the current git HEAD
-     * @throws IOException
-     */
-    public RevCommit getLastCommit() throws IOException {
-        ObjectId lastCommitId = git.getRepository().resolve(Constants.HEAD);
-        RevWalk revWalk = new RevWalk(git.getRepository());
-        return revWalk.parseCommit(lastCommitId);
-    }
-
-    /**
-     * replay the merge scenario of a merge commit
-     * @param mergeCommit the parsed merge commit
-     * @param javaConflicts contain map of conflicting files
-     * @return a method called isConflictingFromMergeOut
-     * @throws GitAPIException
-     * @see #isConflictingFromMergeOutput(String, Map)
-     */
-    public boolean isConflicting(RevCommit mergeCommit, Map<String, String> javaConflicts) throws GitAPIException {
-        gitReset();
-        Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                "git", "checkout", mergeCommit.getParent(0).getName());
-        String mergeOutput = Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                "git", "merge", "--no-commit", mergeCommit.getParent(1).getName());
-
-        return isConflictingFromMergeOutput(mergeOutput, javaConflicts);
-    }
-
-    /**
-     * perform git cherry picking operation and forward the output to another method
-     * @param mergeCommit the parsed merge commit
-     * @param javaConflicts contain map of conflicting files
-     * @return a method called isConflictingFromMergeOut
-     * @throws GitAPIException
-     * @see #isConflictingFromMergeOutput(String, Map)
-     */
-    public boolean isConflictingCherryPick(RevCommit mergeCommit, Map<String, String> javaConflicts) throws GitAPIException {
-        gitReset();
-        Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                "git", "checkout", "-b", String.format("patch-%s", mergeCommit.getName()));
-
-        String mergeOutput = Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                "git", "cherry-pick", "--no-commit", mergeCommit.getName());
-
-        return isConflictingFromMergeOutput(mergeOutput, javaConflicts);
-    }
-
-    /**
-     *
-     * @param mergeOutput
-     * @param javaConflicts
-     * @return
-     * @throws GitAPIException
-     */
-    public boolean isConflictingFromMergeOutput(String mergeOutput, Map<String, String> javaConflicts) throws
-            GitAPIException {
-        if (mergeOutput.toLowerCase().startsWith("fatal:")) {
-            throw new UnsupportedGitConflict("There was a problem while checking for merge conflict:\n" + mergeOutput);
-        }
-        for (String line : mergeOutput.split("\n")) {
-            if (!line.startsWith("CONFLICT")) continue;
-
-            String filePath, conflictType;
-            Matcher renameRenameMatcher = PATTERN_CONFLICT_RENAME_RENAME.matcher(line);
-            Matcher renameAddMatcher = PATTERN_CONFLICT_RENAME_ADD.matcher(line);
-            Matcher deleteMatcher = PATTERN_CONFLICT_DELETE.matcher(line);
-            Matcher contentMatcher = PATTERN_CONFLICT_CONTENT.matcher(line);
-
-            if (renameRenameMatcher.matches()) {
-                conflictType = renameRenameMatcher.group(1);
-                filePath = renameRenameMatcher.group(2);
-            } else if (renameAddMatcher.matches()) {
-                conflictType = renameAddMatcher.group(1);
-                filePath = renameAddMatcher.group(2);
-            } else if (deleteMatcher.matches()) {
-                conflictType = deleteMatcher.group(1);
-                filePath = deleteMatcher.group(2);
-            } else if (contentMatcher.matches()) {
-                conflictType = contentMatcher.group(1);
-                filePath = contentMatcher.group(2);
-            } else if (line.toLowerCase().contains(".java")) {
-                conflictType = "Undetected";
-                filePath = line;
-            } else {
-                if (git != null)
-                    Utils.log(git.getRepository().getWorkTree().getName(), "Unknown git conflict: " + line);
-                continue;
-            }
-
-            if (filePath.toLowerCase().endsWith(".java") || conflictType.equals("Undetected"))
-                javaConflicts.put(filePath, conflictType);
+    private synchronized CommitResolver getCommitResolver() {
+        if (commitResolver == null) {
+            commitResolver = new CommitResolver(git.getRepository());
         }
-        return mergeOutput.toLowerCase().contains("automatic merge failed");
+        return commitResolver;
     }
 
     /**
-     *
-     * @param path
-     * @param conflictingRegionPaths
-     * @param conflictingRegions
+     * Releases the commit resolver, the repository itself is closed by its owner
      */
-    public void getConflictingRegions(String path, String[] conflictingRegionPaths,
-                                      List<int[][]> conflictingRegions) {
-        String diffOutput = Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                "git", "diff", "-U0", path);
-        getConflictingRegionsFromDiffOutput(diffOutput, conflictingRegionPaths, conflictingRegions);
-    }
-
-    /**
-     *
-     * @param diffOutput git diff command output
-     * @param conflictingRegionPaths
-     * @param conflictingRegions
-     */
-    public void getConflictingRegionsFromDiffOutput(String diffOutput, String[] conflictingRegionPaths,
-                                                    List<int[][]> conflictingRegions) {
-        for (String line : diffOutput.split("\n")) {
-            Matcher conflictLocMatcher = PATTERN_COMBINED_DIFF_RANGE.matcher(line);
-            Matcher conflictPathMatcher = PATTERN_DIFF_PATH.matcher(line);
-
-            if (conflictPathMatcher.matches()) {
-                if (conflictingRegionPaths[0] == null) {
-                    conflictingRegionPaths[0] = conflictPathMatcher.group(1);
-                } else if (conflictingRegionPaths[1] == null) {
-                    conflictingRegionPaths[1] = conflictPathMatcher.group(1);
-                }
-            } else if (conflictLocMatcher.matches()) {
-                conflictingRegions.add(new int[][]{
-                        {Integer.valueOf(conflictLocMatcher.group(1)), Integer.valueOf(conflictLocMatcher.group(2))},
-                        {Integer.valueOf(conflictLocMatcher.group(3)), Integer.valueOf(conflictLocMatcher.group(4))}});
-            }
+    @Override
+    public synchronized void close() {
+        if (commitResolver != null) {
+            commitResolver.close();
+            commitResolver = null;
         }
     }
 
     /**
-     *
-     * @param commitReachableFrom
-     * @param commitNotReachableFrom
-     * @param path
-     * @param conflictingRegion
-     * @param conflictingRegionHistory
-     */
-    public void getConflictingRegionHistory(String commitReachableFrom, String commitNotReachableFrom,
-                                            String path, int[] conflictingRegion,
-                                            List<CodeRegionChange> conflictingRegionHistory) {
-        String fileRange = conflictingRegion[0] + "," + (conflictingRegion[0] + conflictingRegion[1]) + ":" + path;
-        String commitRange = commitNotReachableFrom + ".." + commitReachableFrom;
-        String logOutput = Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                "git", "log", "--topo-order", "-u", "-L", fileRange, commitRange);
-        getConflictingRegionHistoryFromGitOutput(logOutput, conflictingRegionHistory);
-    }
-
-    /**
-     *
-     * @param logOutput
-     * @param conflictingRegionHistory
+     * Extracts the last commit at HEAD of the repository
+     * @return last commit in the current git HEAD
+     * @throws IOException
      */
-    public void getConflictingRegionHistoryFromGitOutput(String logOutput, List<CodeRegionChange> conflictingRegionHistory) {
-        String currentCommit = null;
-        String[] currentPaths = new String[2];
-        for (String line : logOutput.split("\n")) {
-            Matcher commitMatcher = PATTERN_LOG_COMMIT.matcher(line);
-            Matcher pathMatcher = PATTERN_DIFF_PATH.matcher(line);
-            Matcher diffMatcher = PATTERN_DIFF_RANGE.matcher(line);
-
-            if (commitMatcher.matches()) {
-                currentCommit = commitMatcher.group(1);
-            } else if (pathMatcher.matches()) {
-                if (currentPaths[0] == null) {
-                    currentPaths[0] = pathMatcher.group(1);
-                } else if (currentPaths[1] == null) {
-                    currentPaths[1] = pathMatcher.group(1);
-                } else {
-
-                }
-            } else if (diffMatcher.matches()) {
-                conflictingRegionHistory.add(new CodeRegionChange(
-                        currentCommit, currentPaths[0], currentPaths[1],
-                        Integer.valueOf(diffMatcher.group(1)),
-                        Integer.valueOf(diffMatcher.group(2)),
-                        Integer.valueOf(diffMatcher.group(3)),
-                        Integer.valueOf(diffMatcher.group(4))));
-                currentPaths = new String[2];
-            }
+    public RevCommit getLastCommit() throws IOException {
+        ObjectId lastCommitId = git.getRepository().resolve(Constants.HEAD);
+        try (RevWalk revWalk = new RevWalk(git.getRepository())) {
+            return revWalk.parseCommit(lastCommitId);
         }
     }
 
     /**
-     *
+     * Cherry-picks a commit onto another commit in memory, without touching the working tree
+     * @param head commit on which the merge commit is picked, normally the last commit at HEAD
+     * @param mergeCommit the parsed merge commit
+     * @param javaConflicts contain map of conflicting files
+     * @param conflictingRegions conflict regions of the conflicting java files with content or add/add conflicts
+     * @return true if the cherry-pick is conflicting
+     * @throws IOException thrown when an object cannot be read
+     * @see CherryPickEvaluator
      */
-    public void gitReset() {
-        String resetOutput = Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                "git", "reset", "--hard");
-        if (resetOutput.contains(".git/index.lock")) {
-            Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                    "rm", ".git/index.lock");
-            Utils.runSystemCommand(git.getRepository().getWorkTree().getAbsolutePath(),
-                    "git", "reset", "--hard");
-        }
+    public boolean isConflictingInCore(RevCommit head, RevCommit mergeCommit, Map<String, String> javaConflicts,
+                                       Map<String, List<CherryPickEvaluator.ConflictRegion>> conflictingRegions)
+            throws IOException {
+        CherryPickEvaluator.Result result = new CherryPickEvaluator(git.getRepository()).evaluate(head, mergeCommit);
+        result.getConflicts().forEach((path, conflictType) -> {
+            if (path.toLowerCase().endsWith(".java"))
+                javaConflicts.put(path, conflictType.toString());
+        });
+        result.getConflictRegions().forEach((path, regions) -> {
+            if (javaConflicts.containsKey(path))
+                conflictingRegions.put(path, regions);
+        });
+        return result.isConflicting();
     }
 
     /**
-     *
-     * @param commitHash
-     * @return
+     * Finds the history of all conflicting regions of a file in one walk, see {@link LineHistoryTracker}
+     * @param commitReachableFrom commit in which the regions are located
+     * @param commitNotReachableFrom commit whose history is excluded
+     * @param path path of the file
+     * @param conflictingRegions start line and length of every region
+     * @param conflictingRegionsHistory stores the changes of every region, in the order of the regions
      */
-    public RevCommit populateCommit(String commitHash) {
-        try (RevWalk walk = new RevWalk(git.getRepository())) {
-            RevCommit commit = walk.parseCommit(ObjectId.fromString(commitHash));
-            walk.dispose();
-            return commit;
-        } catch (Exception e) {
-            return null;
+    public void getConflictingRegionsHistory(String commitReachableFrom, String commitNotReachableFrom,
+                                             String path, List<int[]> conflictingRegions,
+                                             List<List<CodeRegionChange>> conflictingRegionsHistory) {
+        try {
+            conflictingRegionsHistory.addAll(new LineHistoryTracker(git.getRepository())
+                    .getHistory(commitReachableFrom, commitNotReachableFrom, path, conflictingRegions));
+        } catch (IOException e) {
+            e.printStackTrace();
+            conflictingRegions.forEach(region -> conflictingRegionsHistory.add(new ArrayList<>()));
         }
     }
 
-    /**
-     *
-     */
     public static class CodeRegionChange {
         public String commitHash, oldPath, newPath;
         public int oldStartLine, oldLength, newStartLine, newLength;
@@ -352,13 +183,4 @@ public class GitUtils {
                     Objects.equals(newPath, that.newPath);
         }
     }
-
-
-    public static class UnsupportedGitConflict extends GitAPIException {
-
-        protected UnsupportedGitConflict(String message) {
-            super(message);
-        }
-    }
-
 }
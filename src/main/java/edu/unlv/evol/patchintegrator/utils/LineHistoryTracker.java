@@ -0,0 +1,419 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.EditList;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows the history of line ranges of one file like git log -L does, but for all ranges of the
+ * file in a single walk. The diff of every commit that changes the file is computed once and shared
+ * by all tracked ranges, and renames are followed when the file was added in a commit.
+ * <p>
+ * The ranges are mapped across each diff the same way git's line-log does: a commit is reported when
+ * one of its edits overlaps a range, and the range in the parent is the range in the commit with
+ * the overlapping edits replaced by their parent side. Merge commits pass a range on to the first
+ * parent that did not change it, or to all parents when every parent changed it, and are not reported.
+ * <p>
+ * Conflicting regions of a file are often close to each other, so in every commit the overlapping and
+ * adjacent ranges of all regions are coalesced into intervals. An interval that no edit touches moves
+ * all of its ranges by one offset, only the ranges of touched intervals are mapped one by one.
+ */
+public class LineHistoryTracker {
+
+    private static final String DEV_NULL = "/dev/null";
+    private static final int TEXT_CACHE_SIZE = 16;
+
+    private final Repository repository;
+    private final DiffAlgorithm diffAlgorithm = DiffAlgorithm.getAlgorithm(DiffAlgorithm.SupportedAlgorithm.MYERS);
+
+    public LineHistoryTracker(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Finds the commits of commitNotReachableFrom..commitReachableFrom that changed each region
+     * @param commitReachableFrom commit in which the regions are located
+     * @param commitNotReachableFrom commit whose history is excluded
+     * @param path path of the file in commitReachableFrom
+     * @param regions start line and length of every region, the tracked lines are start..start+length
+     *                like the -L start,end argument that was passed to git log
+     * @return changes of every region, in the order of the regions
+     * @throws IOException thrown when an object cannot be read
+     */
+    public List<List<GitUtils.CodeRegionChange>> getHistory(String commitReachableFrom, String commitNotReachableFrom,
+                                                            String path, List<int[]> regions) throws IOException {
+        List<List<GitUtils.CodeRegionChange>> histories = new ArrayList<>();
+        regions.forEach(region -> histories.add(new ArrayList<>()));
+
+        ObjectId startId = repository.resolve(commitReachableFrom);
+        if (startId == null) return histories;
+
+        try (RevWalk walk = new RevWalk(repository)) {
+            ObjectReader reader = walk.getObjectReader();
+            Map<ObjectId, RawText> textCache = new LinkedHashMap<ObjectId, RawText>(TEXT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ObjectId, RawText> eldest) {
+                    return size() > TEXT_CACHE_SIZE;
+                }
+            };
+
+            RevCommit start = walk.parseCommit(startId);
+            ObjectId startBlob = findBlob(reader, start.getTree(), path);
+            if (startBlob == null) return histories;
+
+            // Like git log -L, a region that starts outside of the file has no history
+            // and a region that ends after the last line is cut at the last line.
+            int lineCount = readText(reader, startBlob, textCache).size();
+            TrackedFile startFile = new TrackedFile(path, regions.size());
+            for (int i = 0; i < regions.size(); i++) {
+                int begin = regions.get(i)[0] - 1;
+                int end = Math.min(regions.get(i)[0] + regions.get(i)[1], lineCount);
+                if (begin >= 0 && begin < lineCount) {
+                    startFile.ranges.set(i, Collections.singletonList(new int[]{begin, end}));
+                }
+            }
+
+            walk.sort(RevSort.TOPO);
+            walk.markStart(start);
+            ObjectId stopId = repository.resolve(commitNotReachableFrom);
+            if (stopId != null) {
+                walk.markUninteresting(walk.parseCommit(stopId));
+            }
+
+            Map<RevCommit, TrackedFile> pending = new HashMap<>();
+            pending.put(start, startFile);
+            RevCommit commit;
+            while (!pending.isEmpty() && (commit = walk.next()) != null) {
+                TrackedFile trackedFile = pending.remove(commit);
+                if (trackedFile != null) {
+                    processCommit(walk, textCache, commit, trackedFile, pending, histories);
+                }
+            }
+        }
+        return histories;
+    }
+
+    /**
+     * Reports the regions changed by a commit and hands the regions over to its parents
+     */
+    private void processCommit(RevWalk walk, Map<ObjectId, RawText> textCache, RevCommit commit,
+                               TrackedFile trackedFile, Map<RevCommit, TrackedFile> pending,
+                               List<List<GitUtils.CodeRegionChange>> histories) throws IOException {
+        ObjectReader reader = walk.getObjectReader();
+        ObjectId blob = findBlob(reader, commit.getTree(), trackedFile.path);
+        if (blob == null) return;
+
+        int parentCount = commit.getParentCount();
+        FileDiff[] diffs = new FileDiff[Math.max(parentCount, 1)];
+        if (parentCount == 0) {
+            diffs[0] = FileDiff.added(readText(reader, blob, textCache).size());
+        }
+        for (int p = 0; p < parentCount; p++) {
+            RevCommit parent = walk.parseCommit(commit.getParent(p));
+            diffs[p] = diffFile(reader, textCache, parent, commit, trackedFile.path, blob);
+        }
+        List<int[]> intervals = coalesce(trackedFile.ranges);
+        for (FileDiff diff : diffs) {
+            diff.setIntervals(intervals);
+        }
+
+        for (int i = 0; i < trackedFile.ranges.size(); i++) {
+            List<int[]> ranges = trackedFile.ranges.get(i);
+            if (ranges == null) continue;
+
+            if (parentCount <= 1) {
+                List<int[]> parentRanges = new ArrayList<>();
+                for (int[] range : ranges) {
+                    int[] parentRange = diffs[0].map(range);
+                    if (diffs[0].touches(range)) {
+                        histories.get(i).add(createChange(commit, diffs[0], trackedFile.path, parentRange, range));
+                    }
+                    if (parentRange[1] > parentRange[0]) {
+                        parentRanges.add(parentRange);
+                    }
+                }
+                if (parentCount == 1) {
+                    assignRanges(pending, commit.getParent(0), diffs[0].oldPath, i, trackedFile.ranges.size(),
+                            parentRanges);
+                }
+                continue;
+            }
+
+            int sameParent = -1;
+            for (int p = 0; p < parentCount && sameParent < 0; p++) {
+                if (!diffs[p].touchesAny(ranges)) sameParent = p;
+            }
+            for (int p = 0; p < parentCount; p++) {
+                if (sameParent >= 0 && p != sameParent) continue;
+
+                List<int[]> parentRanges = new ArrayList<>();
+                for (int[] range : ranges) {
+                    int[] parentRange = diffs[p].map(range);
+                    if (parentRange[1] > parentRange[0]) parentRanges.add(parentRange);
+                }
+                assignRanges(pending, commit.getParent(p), diffs[p].oldPath, i, trackedFile.ranges.size(),
+                        parentRanges);
+            }
+        }
+    }
+
+    /**
+     * Merges the overlapping and adjacent ranges of all regions into sorted, disjoint intervals
+     */
+    static List<int[]> coalesce(List<List<int[]>> regionRanges) {
+        List<int[]> ranges = new ArrayList<>();
+        for (List<int[]> rangesOfRegion : regionRanges) {
+            if (rangesOfRegion != null) ranges.addAll(rangesOfRegion);
+        }
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+        List<int[]> intervals = new ArrayList<>();
+        for (int[] range : ranges) {
+            int[] last = intervals.isEmpty() ? null : intervals.get(intervals.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                intervals.add(new int[]{range[0], range[1]});
+            }
+        }
+        return intervals;
+    }
+
+    /**
+     * Adds the ranges of a region to a parent commit, merging them with the ranges handed over by other children
+     */
+    private void assignRanges(Map<RevCommit, TrackedFile> pending, RevCommit parent, String path, int region,
+                              int regionCount, List<int[]> ranges) {
+        if (path == null || ranges.isEmpty() || parent.has(RevFlag.UNINTERESTING)) return;
+
+        TrackedFile parentFile = pending.computeIfAbsent(parent, key -> new TrackedFile(path, regionCount));
+        if (!parentFile.path.equals(path)) return;
+
+        List<List<int[]>> merged = new ArrayList<>();
+        merged.add(ranges);
+        merged.add(parentFile.ranges.get(region));
+        parentFile.ranges.set(region, coalesce(merged));
+    }
+
+    /**
+     * Builds the change record of a range the way git log -L prints its hunk header
+     */
+    private GitUtils.CodeRegionChange createChange(RevCommit commit, FileDiff diff, String path, int[] parentRange,
+                                                   int[] range) {
+        int oldStartLine = parentRange[0] == 0 && parentRange[1] == 0 ? 0 : parentRange[0] + 1;
+        return new GitUtils.CodeRegionChange(commit.getName(),
+                diff.oldPath == null ? DEV_NULL : diff.oldPath, path,
+                oldStartLine, parentRange[1] - parentRange[0],
+                range[0] + 1, range[1] - range[0]);
+    }
+
+    /**
+     * Diffs a file between a parent and a commit, following a rename when the file does not exist in the parent
+     */
+    private FileDiff diffFile(ObjectReader reader, Map<ObjectId, RawText> textCache, RevCommit parent,
+                              RevCommit commit, String path, ObjectId blob) throws IOException {
+        String oldPath = path;
+        ObjectId oldBlob = findBlob(reader, parent.getTree(), path);
+        if (oldBlob == null) {
+            oldPath = null;
+            for (DiffEntry diffEntry : detectRenames(reader, parent.getTree(), commit.getTree())) {
+                if (path.equals(diffEntry.getNewPath())) {
+                    oldPath = diffEntry.getOldPath();
+                    oldBlob = diffEntry.getOldId().toObjectId();
+                    break;
+                }
+            }
+        }
+
+        RawText text = readText(reader, blob, textCache);
+        if (oldBlob == null) {
+            return FileDiff.added(text.size());
+        }
+        if (oldBlob.equals(blob)) {
+            return new FileDiff(oldPath, new EditList());
+        }
+        RawText oldText = readText(reader, oldBlob, textCache);
+        return new FileDiff(oldPath, diffAlgorithm.diff(RawTextComparator.DEFAULT, oldText, text));
+    }
+
+    private List<DiffEntry> detectRenames(ObjectReader reader, RevTree oldTree, RevTree newTree) throws IOException {
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(oldTree);
+            treeWalk.addTree(newTree);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+
+            RenameDetector renameDetector = new RenameDetector(reader, repository.getConfig().get(DiffConfig.KEY));
+            renameDetector.addAll(DiffEntry.scan(treeWalk));
+            List<DiffEntry> renames = new ArrayList<>();
+            for (DiffEntry diffEntry : renameDetector.compute()) {
+                if (diffEntry.getChangeType() == DiffEntry.ChangeType.RENAME
+                        || diffEntry.getChangeType() == DiffEntry.ChangeType.COPY) {
+                    renames.add(diffEntry);
+                }
+            }
+            return renames;
+        }
+    }
+
+    private ObjectId findBlob(ObjectReader reader, RevTree tree, String path) throws IOException {
+        try (TreeWalk treeWalk = TreeWalk.forPath(reader, path, tree)) {
+            return treeWalk == null ? null : treeWalk.getObjectId(0);
+        }
+    }
+
+    private RawText readText(ObjectReader reader, ObjectId blob, Map<ObjectId, RawText> textCache) throws IOException {
+        RawText text = textCache.get(blob);
+        if (text == null) {
+            text = new RawText(reader.open(blob, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE));
+            textCache.put(blob.copy(), text);
+        }
+        return text;
+    }
+
+    /**
+     * Path of the tracked file in a commit and the ranges of every region in it (0-based, end exclusive)
+     */
+    private static class TrackedFile {
+        final String path;
+        final List<List<int[]>> ranges;
+
+        TrackedFile(String path, int regionCount) {
+            this.path = path;
+            this.ranges = new ArrayList<>(Collections.nCopies(regionCount, null));
+        }
+    }
+
+    /**
+     * Edits of a file between a parent and a commit, oldPath is null when the file was added
+     */
+    private static class FileDiff {
+        final String oldPath;
+        final EditList edits;
+        private int[][] intervals = new int[0][];
+        private boolean[] intervalTouched = new boolean[0];
+        private int[] intervalOffsets = new int[0];
+
+        FileDiff(String oldPath, EditList edits) {
+            this.oldPath = oldPath;
+            this.edits = edits;
+        }
+
+        static FileDiff added(int lineCount) {
+            EditList edits = new EditList();
+            edits.add(new Edit(0, 0, 0, lineCount));
+            return new FileDiff(null, edits);
+        }
+
+        /**
+         * Checks the coalesced intervals of the tracked ranges against the edits once, so that ranges
+         * inside an interval that no edit touches are shifted without looking at the edits again
+         * @param intervals sorted, disjoint intervals that cover all tracked ranges
+         */
+        void setIntervals(List<int[]> intervals) {
+            this.intervals = intervals.toArray(new int[0][]);
+            this.intervalTouched = new boolean[this.intervals.length];
+            this.intervalOffsets = new int[this.intervals.length];
+            for (int k = 0; k < this.intervals.length; k++) {
+                intervalTouched[k] = touchesEdits(this.intervals[k]);
+                intervalOffsets[k] = mapStart(this.intervals[k][0]) - this.intervals[k][0];
+            }
+        }
+
+        boolean touches(int[] range) {
+            int interval = findInterval(range[0]);
+            if (interval >= 0 && !intervalTouched[interval]) return false;
+            return touchesEdits(range);
+        }
+
+        boolean touchesAny(List<int[]> ranges) {
+            for (int[] range : ranges) {
+                if (touches(range)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Maps a range of the commit to the parent, an edit that contains an end of the range
+         * extends the range to the parent side of the edit
+         */
+        int[] map(int[] range) {
+            int interval = findInterval(range[0]);
+            if (interval >= 0 && !intervalTouched[interval]) {
+                return new int[]{range[0] + intervalOffsets[interval], range[1] + intervalOffsets[interval]};
+            }
+            return new int[]{mapStart(range[0]), mapEnd(range[1])};
+        }
+
+        /**
+         * An edit touches a range when it overlaps it, or when it deleted lines between two lines of the range
+         */
+        private boolean touchesEdits(int[] range) {
+            // Edits are sorted and disjoint, only the first edit that ends after the start can touch the range.
+            int low = 0, high = edits.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (edits.get(mid).getEndB() > range[0]) high = mid;
+                else low = mid + 1;
+            }
+            return low < edits.size() && edits.get(low).getBeginB() < range[1];
+        }
+
+        private int mapStart(int line) {
+            Edit edit = lastEditStartingAt(line);
+            if (edit == null) return line;
+            return line < edit.getEndB() ? edit.getBeginA() : line + edit.getEndA() - edit.getEndB();
+        }
+
+        private int mapEnd(int end) {
+            int line = end - 1;
+            Edit edit = lastEditStartingAt(line);
+            if (edit == null) return end;
+            return line < edit.getEndB() ? edit.getEndA() : end + edit.getEndA() - edit.getEndB();
+        }
+
+        private Edit lastEditStartingAt(int line) {
+            int low = 0, high = edits.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (edits.get(mid).getBeginB() > line) high = mid;
+                else low = mid + 1;
+            }
+            return low == 0 ? null : edits.get(low - 1);
+        }
+
+        private int findInterval(int line) {
+            int low = 0, high = intervals.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (intervals[mid][0] > line) high = mid;
+                else low = mid + 1;
+            }
+            return low > 0 && line < intervals[low - 1][1] ? low - 1 : -1;
+        }
+    }
+}
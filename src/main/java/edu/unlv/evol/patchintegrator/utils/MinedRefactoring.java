@@ -0,0 +1,105 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import gr.uom.java.xmi.diff.CodeRange;
+import org.refactoringminer.api.Refactoring;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A refactoring detected by RefactoringMiner, reduced to what is stored in the database: its type,
+ * its description and the code ranges before and after it. Unlike RefactoringMiner's own objects it
+ * does not hold on to the parsed models, so it can be written to a stream and read back in another JVM.
+ */
+public class MinedRefactoring {
+    public final String type, description;
+    public final List<Range> sourceRanges, destRanges;
+
+    public MinedRefactoring(String type, String description, List<Range> sourceRanges, List<Range> destRanges) {
+        this.type = type;
+        this.description = description;
+        this.sourceRanges = sourceRanges;
+        this.destRanges = destRanges;
+    }
+
+    /**
+     * @param refactoring refactoring detected by RefactoringMiner
+     * @param refMinerUtils extracts the code ranges of the refactoring
+     * @return the refactoring with its code ranges
+     */
+    public static MinedRefactoring of(Refactoring refactoring, RefactoringMinerUtils refMinerUtils) {
+        List<CodeRange> sourceCodeRanges = new ArrayList<>();
+        List<CodeRange> destCodeRanges = new ArrayList<>();
+        refMinerUtils.getRefactoringCodeRanges(refactoring, sourceCodeRanges, destCodeRanges);
+        return new MinedRefactoring(refactoring.getRefactoringType().getDisplayName(), refactoring.toString(),
+                toRanges(sourceCodeRanges), toRanges(destCodeRanges));
+    }
+
+    private static List<Range> toRanges(List<CodeRange> codeRanges) {
+        List<Range> ranges = new ArrayList<>(codeRanges.size());
+        codeRanges.forEach(cr -> ranges.add(new Range(cr.getFilePath(), cr.getStartLine(), cr.getEndLine())));
+        return ranges;
+    }
+
+    public void write(DataOutput output) throws IOException {
+        writeString(output, type);
+        writeString(output, description);
+        writeRanges(output, sourceRanges);
+        writeRanges(output, destRanges);
+    }
+
+    public static MinedRefactoring read(DataInput input) throws IOException {
+        return new MinedRefactoring(readString(input), readString(input), readRanges(input), readRanges(input));
+    }
+
+    /**
+     * Writes a string of any length, writeUTF is limited to 64 KB
+     */
+    static void writeString(DataOutput output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    static String readString(DataInput input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeRanges(DataOutput output, List<Range> ranges) throws IOException {
+        output.writeInt(ranges.size());
+        for (Range range : ranges) {
+            writeString(output, range.filePath);
+            output.writeInt(range.startLine);
+            output.writeInt(range.endLine);
+        }
+    }
+
+    private static List<Range> readRanges(DataInput input) throws IOException {
+        int size = input.readInt();
+        List<Range> ranges = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ranges.add(new Range(readString(input), input.readInt(), input.readInt()));
+        }
+        return ranges;
+    }
+
+    /**
+     * Lines of a file that a refactoring changed
+     */
+    public static class Range {
+        public final String filePath;
+        public final int startLine, endLine;
+
+        public Range(String filePath, int startLine, int endLine) {
+            this.filePath = filePath;
+            this.startLine = startLine;
+            this.endLine = endLine;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs external commands and collects their output. Standard error is drained on a separate thread, so a
+ * command never blocks on a full pipe, and a command that runs longer than its timeout is killed together
+ * with the processes it started.
+ */
+public class ProcessRunner {
+
+    public static final long DEFAULT_TIMEOUT_MINUTES = 30;
+
+    private static final ExecutorService STREAM_DRAINERS = Executors.newCachedThreadPool(daemonThreads("stderr-drainer"));
+    private static final ScheduledExecutorService WATCHDOG =
+            Executors.newSingleThreadScheduledExecutor(daemonThreads("process-watchdog"));
+
+    /**
+     * Runs a command and waits for it
+     * @param dir working directory of the command
+     * @param timeout time after which the command is killed
+     * @param unit unit of the timeout
+     * @param command the command and its arguments
+     * @return output of the command, standard output followed by standard error
+     * @throws IOException thrown when the command cannot be started or its output cannot be read
+     * @throws InterruptedException thrown when the thread is interrupted while waiting, the command is killed
+     * @throws TimeoutException thrown when the command was killed because it exceeded the timeout
+     */
+    public static String run(File dir, long timeout, TimeUnit unit, String... command)
+            throws IOException, InterruptedException, TimeoutException {
+        Process process = new ProcessBuilder(command).directory(dir).start();
+        process.getOutputStream().close();
+
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+            timedOut.set(true);
+            kill(process);
+        }, timeout, unit);
+        StringBuilder output = new StringBuilder();
+        try {
+            Future<String> errorDrainer = STREAM_DRAINERS.submit(() -> readLines(process.getErrorStream()));
+            try {
+                output.append(readLines(process.getInputStream()));
+                output.append(errorDrainer.get());
+                process.waitFor();
+            } catch (IOException | ExecutionException e) {
+                // Killing the command closes its streams, which is not an error of its own.
+                if (!timedOut.get()) {
+                    throw e instanceof IOException ? (IOException) e : new IOException(e.getCause());
+                }
+            }
+        } finally {
+            watchdog.cancel(false);
+            if (process.isAlive()) kill(process);
+        }
+
+        if (timedOut.get()) {
+            throw new TimeoutException(String.join(" ", command) + " was killed after " + timeout + " "
+                    + unit.toString().toLowerCase());
+        }
+        return output.toString();
+    }
+
+    private static String readLines(InputStream stream) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.append(line).append("\n");
+            }
+        }
+        return lines.toString();
+    }
+
+    static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
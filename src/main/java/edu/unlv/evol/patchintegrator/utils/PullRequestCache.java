@@ -0,0 +1,103 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of the metadata of merged pull requests, one properties file per repository. A merged
+ * pull request never changes, so once it is cached it is not requested from GitHub again. Pull requests
+ * that are not merged yet are not cached. Several projects with the same source repository can use
+ * the cache at the same time, entries of other instances are kept when the file is saved.
+ */
+public class PullRequestCache {
+
+    private static final String CACHE_FILE_EXTENSION = ".properties";
+    private static final String KEY_SHA = ".sha";
+    private static final String KEY_TITLE = ".title";
+    private static final String KEY_BASE = ".base";
+    private static final String KEY_MERGED_AT = ".merged_at";
+    private static final Map<File, Object> fileLocks = new ConcurrentHashMap<>();
+
+    private final File cacheFile;
+    private final Properties pullRequests = new Properties();
+
+    /**
+     *
+     * @param cacheDir directory that keeps the cache files
+     * @param repositoryURL URL of the repository of the pull requests
+     * @throws IOException thrown when an existing cache file cannot be read
+     */
+    public PullRequestCache(File cacheDir, String repositoryURL) throws IOException {
+        this.cacheFile = new File(cacheDir, GitHubUtils.extractRepositoryName(repositoryURL) + CACHE_FILE_EXTENSION);
+        synchronized (getLock()) {
+            load(pullRequests);
+        }
+    }
+
+    /**
+     * @param number pull request number
+     * @return cached metadata of the pull request, or null when it is not cached
+     */
+    public synchronized GitHubUtils.PullRequestInfo get(int number) {
+        String sha = pullRequests.getProperty(number + KEY_SHA);
+        if (sha == null) return null;
+
+        String mergedAt = pullRequests.getProperty(number + KEY_MERGED_AT);
+        return new GitHubUtils.PullRequestInfo(number, sha, pullRequests.getProperty(number + KEY_TITLE),
+                pullRequests.getProperty(number + KEY_BASE), mergedAt == null ? null : new Date(Long.parseLong(mergedAt)));
+    }
+
+    /**
+     * Adds a pull request to the cache if it is merged
+     * @param pullRequest metadata of the pull request
+     * @return true when the pull request was added
+     */
+    public synchronized boolean put(GitHubUtils.PullRequestInfo pullRequest) {
+        if (pullRequest == null || pullRequest.mergeCommitSha == null || pullRequest.mergedAt == null) return false;
+
+        pullRequests.setProperty(pullRequest.number + KEY_SHA, pullRequest.mergeCommitSha);
+        pullRequests.setProperty(pullRequest.number + KEY_MERGED_AT, String.valueOf(pullRequest.mergedAt.getTime()));
+        if (pullRequest.title != null) pullRequests.setProperty(pullRequest.number + KEY_TITLE, pullRequest.title);
+        if (pullRequest.baseRef != null) pullRequests.setProperty(pullRequest.number + KEY_BASE, pullRequest.baseRef);
+        return true;
+    }
+
+    /**
+     * Writes the cache to disk, together with the entries that other instances saved in the meantime
+     * @throws IOException thrown when the cache file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        synchronized (getLock()) {
+            Properties merged = new Properties();
+            load(merged);
+            merged.putAll(pullRequests);
+
+            cacheFile.getParentFile().mkdirs();
+            File tempFile = new File(cacheFile.getPath() + ".tmp");
+            try (OutputStream output = Files.newOutputStream(tempFile.toPath())) {
+                merged.store(output, "Merged pull requests");
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void load(Properties properties) throws IOException {
+        if (!cacheFile.isFile()) return;
+        try (InputStream input = Files.newInputStream(cacheFile.toPath())) {
+            properties.load(input);
+        }
+    }
+
+    private Object getLock() {
+        return fileLocks.computeIfAbsent(cacheFile.getAbsoluteFile(), file -> new Object());
+    }
+}
@@ -0,0 +1,119 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the merge commits of pull requests from a local copy of the upstream repository, without
+ * calling GitHub. The default branch is walked once and indexed by the pull request numbers in the
+ * subjects of its commits: "Merge pull request #n from ..." for merge commits and "... (#n)" for
+ * squash merges. Pull requests that are not found there are resolved from refs/pull/&lt;n&gt;/head when
+ * that commit is on the first-parent chain of the default branch (fast-forward merges). A head that
+ * is only reachable through a second parent was merged by a merge commit, which is not the head.
+ * <p>
+ * Pull requests that cannot be resolved locally, e.g. rebase merges or pull requests into another branch,
+ * are left to {@link GitHubUtils}. The refs/pull/&lt;n&gt;/merge ref is never used, it is GitHub's test
+ * merge and not the commit that merged the pull request.
+ */
+public class PullRequestResolver {
+
+    private static final Pattern PATTERN_MERGE_SUBJECT = Pattern.compile("Merge pull request #(\\d+) from .*");
+    private static final Pattern PATTERN_SQUASH_SUBJECT = Pattern.compile(".*\\(#(\\d+)\\)");
+    private static final String PULL_REFS = "refs/pull/";
+
+    private final Repository repository;
+    private Map<Integer, ObjectId> subjectIndex;
+    private Set<ObjectId> firstParentChain;
+
+    /**
+     *
+     * @param repository local copy of the upstream repository, usually its mirror
+     */
+    public PullRequestResolver(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Resolves the merge commits of pull requests locally
+     * @param pullRequests pull request numbers
+     * @return merge commit ids of the resolved pull requests, keyed by pull request number
+     * @throws IOException thrown when the repository cannot be read
+     */
+    public Map<Integer, String> resolve(int... pullRequests) throws IOException {
+        Map<Integer, String> mergeCommits = new LinkedHashMap<>();
+        for (int pullRequest : pullRequests) {
+            ObjectId mergeCommit = resolve(pullRequest);
+            if (mergeCommit != null) {
+                mergeCommits.put(pullRequest, mergeCommit.getName());
+            }
+        }
+        return mergeCommits;
+    }
+
+    private ObjectId resolve(int pullRequest) throws IOException {
+        ObjectId mergeCommit = getSubjectIndex().get(pullRequest);
+        if (mergeCommit != null) return mergeCommit;
+
+        Ref headRef = repository.exactRef(PULL_REFS + pullRequest + "/head");
+        if (headRef != null && getFirstParentChain().contains(headRef.getObjectId())) return headRef.getObjectId();
+        return null;
+    }
+
+    /**
+     * Indexes the pull request numbers in the subjects of the default branch in one walk, the newest
+     * commit wins when a number occurs more than once
+     */
+    private Map<Integer, ObjectId> getSubjectIndex() throws IOException {
+        if (subjectIndex != null) return subjectIndex;
+
+        subjectIndex = new HashMap<>();
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (head == null) return subjectIndex;
+
+        try (RevWalk walk = new RevWalk(repository)) {
+            walk.markStart(walk.parseCommit(head));
+            for (RevCommit commit : walk) {
+                String subject = commit.getShortMessage();
+                Matcher matcher = commit.getParentCount() > 1
+                        ? PATTERN_MERGE_SUBJECT.matcher(subject) : PATTERN_SQUASH_SUBJECT.matcher(subject);
+                if (matcher.matches()) {
+                    subjectIndex.putIfAbsent(Integer.valueOf(matcher.group(1)), commit.copy());
+                }
+            }
+        }
+        return subjectIndex;
+    }
+
+    /**
+     * Collects the commits of the default branch that are reachable through first parents only, once
+     */
+    private Set<ObjectId> getFirstParentChain() throws IOException {
+        if (firstParentChain != null) return firstParentChain;
+
+        firstParentChain = new HashSet<>();
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (head == null) return firstParentChain;
+
+        try (RevWalk walk = new RevWalk(repository)) {
+            walk.setFirstParent(true);
+            walk.markStart(walk.parseCommit(head));
+            for (RevCommit commit : walk) {
+                firstParentChain.add(commit.copy());
+            }
+        }
+        return firstParentChain;
+    }
+}
@@ -0,0 +1,173 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.refactoringminer.rm1.GitHistoryRefactoringMinerImpl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of the refactorings that RefactoringMiner detected in a commit, keyed by the commit id
+ * and the RefactoringMiner version. Forks of the same upstream share most of their commits, and a
+ * commit's refactorings only depend on its content, so every commit is mined once for all projects and
+ * runs. Each commit is a small compressed file, stored like git's loose objects in a directory per
+ * RefactoringMiner version: &lt;version&gt;/&lt;first two hex digits&gt;/&lt;remaining digits&gt;. A result
+ * that was limited to some files of the commit gets the SHA-1 of those paths appended to its name.
+ * <p>
+ * Only complete results are cached, commits that timed out or failed are mined again. When the
+ * RefactoringMiner version cannot be determined nothing is cached.
+ */
+public class RefactoringMinerCache {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File versionDir;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger stored = new AtomicInteger();
+
+    /**
+     *
+     * @param cacheDir directory that keeps the cache files of all RefactoringMiner versions
+     */
+    public RefactoringMinerCache(File cacheDir) {
+        String version = getRefactoringMinerVersion();
+        this.versionDir = version == null ? null : new File(cacheDir, version);
+    }
+
+    /**
+     * @param commitHash full commit id
+     * @param paths files the analysis was limited to, empty for all changed files
+     * @return the cached refactorings of the commit, or null when the commit is not cached
+     */
+    public List<MinedRefactoring> get(String commitHash, Set<String> paths) {
+        File file = getFile(commitHash, paths);
+        if (file == null || !file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file.toPath()))))) {
+            if (input.readInt() != FORMAT_VERSION) {
+                misses.incrementAndGet();
+                return null;
+            }
+            int size = input.readInt();
+            List<MinedRefactoring> refactorings = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                refactorings.add(MinedRefactoring.read(input));
+            }
+            hits.incrementAndGet();
+            return refactorings;
+        } catch (IOException e) {
+            // A damaged file is treated as missing and replaced by the next put.
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the refactorings of a commit, concurrent writers of the same commit store the same content
+     * @param commitHash full commit id
+     * @param paths files the analysis was limited to, empty for all changed files
+     * @param refactorings all refactorings that RefactoringMiner detected in the commit
+     * @throws IOException thrown when the cache file cannot be written
+     */
+    public void put(String commitHash, Set<String> paths, List<MinedRefactoring> refactorings) throws IOException {
+        File file = getFile(commitHash, paths);
+        if (file == null) return;
+
+        file.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(tempFile.toPath()))))) {
+                output.writeInt(FORMAT_VERSION);
+                output.writeInt(refactorings.size());
+                for (MinedRefactoring refactoring : refactorings) {
+                    refactoring.write(output);
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            stored.incrementAndGet();
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private File getFile(String commitHash, Set<String> paths) {
+        if (versionDir == null || commitHash == null || !ObjectId.isId(commitHash)) return null;
+        String name = commitHash.toLowerCase();
+        String fileName = name.substring(2);
+        if (!paths.isEmpty()) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                for (String path : new TreeSet<>(paths)) {
+                    digest.update(path.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                }
+                fileName += "-" + ObjectId.fromRaw(digest.digest()).getName();
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+        return new File(new File(versionDir, name.substring(0, 2)), fileName);
+    }
+
+    /**
+     * Names the RefactoringMiner version after its jar, e.g. refactoring-miner-2.3.2. When RefactoringMiner is
+     * packed into another jar, the SHA-1 of that jar is used instead, so a rebuild never reuses old results.
+     * @return the version, or null when RefactoringMiner was not loaded from a jar
+     */
+    private static String getRefactoringMinerVersion() {
+        CodeSource codeSource = GitHistoryRefactoringMinerImpl.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null || codeSource.getLocation() == null) return null;
+        try {
+            File jar = new File(codeSource.getLocation().toURI());
+            if (jar.getName().startsWith("refactoring-miner-") && jar.getName().endsWith(".jar")) {
+                return jar.getName().substring(0, jar.getName().length() - ".jar".length());
+            }
+            if (!jar.isFile()) return null;
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            try (InputStream input = Files.newInputStream(jar.toPath())) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return "sha1-" + ObjectId.fromRaw(digest.digest()).getName();
+        } catch (IOException | NoSuchAlgorithmException | URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (versionDir == null) return "RefMiner cache: disabled, the RefactoringMiner version is unknown";
+        return String.format("RefMiner cache %s: %d hits, %d misses, %d stored", versionDir.getName(), hits.get(),
+                misses.get(), stored.get());
+    }
+}
@@ -0,0 +1,187 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs RefactoringMiner on the commits of all projects with a fixed number of workers, sized
+ * independently of the number of projects analyzed in parallel. The commits wait in one queue
+ * shared by all projects, every commit gets its own timeout that starts when a worker takes it, and
+ * its result is handed to a {@link ResultHandler} as soon as it is known.
+ * <p>
+ * Every worker runs RefactoringMiner in its own child JVM (see {@link RefactoringMinerWorker}), so its
+ * heap is separate from the analysis. A child that exceeds the timeout is killed, as is one that runs
+ * out of memory, and the next commit of the worker starts a new child.
+ */
+public class RefactoringMinerPool implements AutoCloseable {
+
+    public static final long DEFAULT_TIMEOUT_MINUTES = 4;
+    public static final String DEFAULT_MAX_HEAP = "2g";
+
+    /**
+     * Files of a commit that RefactoringMiner analyzes
+     */
+    public enum Scope {
+        /** every changed Java file */
+        ALL,
+        /** the files of the conflicting region histories and the files needed to detect moves and renames */
+        HISTORY
+    }
+
+    /**
+     * Receives the result of a commit on the worker that analyzed it
+     */
+    public interface ResultHandler {
+        /**
+         * @param refactorings refactorings detected in the commit, empty when it timed out
+         * @param timedOut true when RefactoringMiner did not finish in time, its child JVM died or could not be
+         *                 started
+         */
+        void handle(List<MinedRefactoring> refactorings, boolean timedOut);
+    }
+
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService watchdog;
+    private final BlockingQueue<RefactoringMinerWorker> idleProcesses = new LinkedBlockingQueue<>();
+    private final List<RefactoringMinerWorker> processes = Collections.synchronizedList(new ArrayList<>());
+    private final String maxHeap;
+    private final RefactoringMinerCache cache;
+    private final long timeout;
+    private final TimeUnit unit;
+
+    public RefactoringMinerPool(int threads, String maxHeap, RefactoringMinerCache cache) {
+        this(threads, maxHeap, cache, DEFAULT_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     *
+     * @param threads number of commits analyzed at the same time
+     * @param maxHeap maximum heap of every child JVM, e.g. 2g
+     * @param cache stores the refactorings of every commit that was analyzed completely, may be null
+     * @param timeout time RefactoringMiner may spend on one commit
+     * @param unit unit of the timeout
+     */
+    public RefactoringMinerPool(int threads, String maxHeap, RefactoringMinerCache cache, long timeout,
+                                TimeUnit unit) {
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), ProcessRunner.daemonThreads("refminer-worker"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(ProcessRunner.daemonThreads("refminer-watchdog"));
+        this.maxHeap = maxHeap;
+        this.cache = cache;
+        this.timeout = timeout;
+        this.unit = unit;
+    }
+
+    /**
+     * Queues a commit behind the commits of all projects that were submitted before
+     * @param projectName name of the project, for logging
+     * @param repoDir repository of the project
+     * @param commitHash commit to analyze
+     * @param paths files of interest, all changed files are analyzed when it is empty
+     * @param handler receives the result on the worker thread, exactly once per commit
+     * @return future that completes after the handler returned
+     */
+    public Future<?> submit(String projectName, File repoDir, String commitHash, Set<String> paths,
+                            ResultHandler handler) {
+        return workers.submit(() -> {
+            Utils.log(projectName, String.format("Analyzing commit %.7s with RefMiner... (%d queued)",
+                    commitHash, workers.getQueue().size()));
+            RefactoringMinerWorker process;
+            try {
+                process = acquire();
+            } catch (IOException e) {
+                // No worker could be started, the commit is skipped like one that timed out.
+                Utils.log(projectName, e);
+                handler.handle(Collections.emptyList(), true);
+                return;
+            }
+
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> kill = watchdog.schedule(() -> {
+                timedOut.set(true);
+                process.close();
+            }, timeout, unit);
+            List<MinedRefactoring> refactorings = Collections.emptyList();
+            boolean complete = false;
+            try {
+                refactorings = process.detectAtCommit(repoDir, commitHash, paths);
+                complete = true;
+            } catch (RefactoringMinerWorker.RefactoringMinerException e) {
+                // RefactoringMiner failed on the commit, which is recorded like a commit without refactorings.
+                Utils.log(projectName, e);
+            } catch (IOException e) {
+                Utils.log(projectName, timedOut.get()
+                        ? String.format("Commit %.7s timed out. Skipping...", commitHash)
+                        : String.format("RefMiner worker died on commit %.7s. Skipping...", commitHash));
+                discard(process);
+                handler.handle(Collections.emptyList(), true);
+                return;
+            } finally {
+                kill.cancel(false);
+            }
+
+            // The watchdog may have fired just after the answer arrived.
+            if (timedOut.get()) {
+                discard(process);
+            } else {
+                release(process);
+            }
+            if (complete) cache(projectName, commitHash, paths, refactorings);
+            handler.handle(refactorings, false);
+        });
+    }
+
+    private void cache(String projectName, String commitHash, Set<String> paths, List<MinedRefactoring> refactorings) {
+        if (cache == null) return;
+        try {
+            cache.put(commitHash, paths, refactorings);
+        } catch (IOException e) {
+            Utils.log(projectName, e);
+        }
+    }
+
+    private RefactoringMinerWorker acquire() throws IOException {
+        RefactoringMinerWorker process = idleProcesses.poll();
+        if (process != null && process.isAlive()) return process;
+        if (process != null) discard(process);
+
+        process = new RefactoringMinerWorker(maxHeap);
+        processes.add(process);
+        return process;
+    }
+
+    private void release(RefactoringMinerWorker process) {
+        idleProcesses.add(process);
+    }
+
+    private void discard(RefactoringMinerWorker process) {
+        process.close();
+        processes.remove(process);
+    }
+
+    /**
+     * Stops the workers and kills their child JVMs, commits that are still queued are not analyzed
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        watchdog.shutdownNow();
+        synchronized (processes) {
+            processes.forEach(RefactoringMinerWorker::close);
+            processes.clear();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import gr.uom.java.xmi.UMLModel;
+import gr.uom.java.xmi.UMLModelASTReader;
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.refactoringminer.api.Refactoring;
+import org.refactoringminer.rm1.GitHistoryRefactoringMinerImpl;
+import org.refactoringminer.util.GitServiceImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects refactorings in the commits of one repository like RefactoringMiner's detectAtCommit, but keeps
+ * the parsed model of every file version for the following commits. RefactoringMiner parses the files
+ * independently, so the model of a commit can be put together from the models of its files, which are
+ * cached by blob and path. In a linear history the files parsed after a commit are the files before the
+ * next one, so every file version is parsed about once. The cache is bounded by the length of the cached
+ * sources and drops the least recently used files first.
+ * <p>
+ * The files are read from the object database only, the working tree and the index are never touched, so
+ * commits can be mined while patches are evaluated in the same repository. A session is not thread-safe,
+ * every RefactoringMiner JVM keeps one per open repository.
+ */
+public class RefactoringMinerSession {
+
+    public static final long DEFAULT_MAX_CACHED_CHARS = 4_000_000;
+
+    private final Repository repository;
+    private final long maxCachedChars;
+    private final Map<String, FileModel> fileModels = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedChars;
+
+    private static class FileModel {
+        final UMLModel model;
+        final int length;
+
+        FileModel(UMLModel model, int length) {
+            this.model = model;
+            this.length = length;
+        }
+    }
+
+    public RefactoringMinerSession(Repository repository) {
+        this(repository, DEFAULT_MAX_CACHED_CHARS);
+    }
+
+    /**
+     *
+     * @param repository repository whose commits are analyzed
+     * @param maxCachedChars total length of the sources whose models are kept
+     */
+    public RefactoringMinerSession(Repository repository, long maxCachedChars) {
+        this.repository = repository;
+        this.maxCachedChars = maxCachedChars;
+    }
+
+    /**
+     * Detects the refactorings of a commit, optionally only in the changed Java files that matter for a set
+     * of paths. These are the changed files of the set and of their directories, and the added and deleted
+     * files, which classes and methods of the set can be moved or extracted to. Other files are not parsed.
+     * @param commitHash commit to analyze
+     * @param paths files of interest, all changed files are analyzed when it is empty
+     * @return refactorings detected in the commit
+     * @throws Exception thrown when RefactoringMiner fails
+     */
+    public List<Refactoring> detectAtCommit(String commitHash, Set<String> paths) throws Exception {
+        RevCommit commit, parent;
+        try (RevWalk walk = new RevWalk(repository)) {
+            commit = walk.parseCommit(ObjectId.fromString(commitHash));
+            if (commit.getParentCount() == 0) return Collections.emptyList();
+            parent = walk.parseCommit(commit.getParent(0));
+        }
+
+        Set<String> pathsBefore = new LinkedHashSet<>();
+        Set<String> pathsAfter = new LinkedHashSet<>();
+        Map<String, String> renamedFilesHint = new HashMap<>();
+        if (paths.isEmpty()) {
+            new GitServiceImpl().fileTreeDiff(repository, commit, pathsBefore, pathsAfter, renamedFilesHint);
+        } else {
+            selectChangedFiles(parent, commit, paths, pathsBefore, pathsAfter, renamedFilesHint);
+        }
+        // Like RefactoringMiner, a commit that only adds or only deletes files has no refactorings.
+        if (pathsBefore.isEmpty() || pathsAfter.isEmpty()) return Collections.emptyList();
+
+        Map<String, ObjectId> blobsBefore = new HashMap<>();
+        Map<String, ObjectId> blobsAfter = new HashMap<>();
+        Set<String> directoriesBefore = findBlobs(parent, pathsBefore, blobsBefore);
+        Set<String> directoriesAfter = findBlobs(commit, pathsAfter, blobsAfter);
+        Map<String, String> fileContentsBefore = readFileContents(blobsBefore);
+        Map<String, String> fileContentsAfter = readFileContents(blobsAfter);
+
+        List<Refactoring> refactorings = new ArrayList<>(GitHistoryRefactoringMinerImpl.processIdenticalFiles(
+                fileContentsBefore, fileContentsAfter, renamedFilesHint));
+        UMLModel modelBefore = createModel(fileContentsBefore, blobsBefore, directoriesBefore);
+        UMLModel modelAfter = createModel(fileContentsAfter, blobsAfter, directoriesAfter);
+        refactorings.addAll(modelBefore.diff(modelAfter).getRefactorings());
+        return refactorings;
+    }
+
+    private void selectChangedFiles(RevCommit parent, RevCommit commit, Set<String> paths, Set<String> pathsBefore,
+                                    Set<String> pathsAfter, Map<String, String> renamedFilesHint) throws IOException {
+        Set<String> directories = new HashSet<>();
+        paths.forEach(path -> directories.add(getDirectory(path)));
+
+        try (ObjectReader reader = repository.newObjectReader();
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(PathSuffixFilter.create(".java"));
+            treeWalk.addTree(parent.getTree());
+            treeWalk.addTree(commit.getTree());
+
+            RenameDetector renameDetector = new RenameDetector(reader, repository.getConfig().get(DiffConfig.KEY));
+            renameDetector.addAll(DiffEntry.scan(treeWalk));
+            for (DiffEntry entry : renameDetector.compute()) {
+                boolean selected = entry.getChangeType() == DiffEntry.ChangeType.ADD
+                        || entry.getChangeType() == DiffEntry.ChangeType.DELETE
+                        || paths.contains(entry.getOldPath()) || paths.contains(entry.getNewPath())
+                        || directories.contains(getDirectory(entry.getOldPath()))
+                        || directories.contains(getDirectory(entry.getNewPath()));
+                if (!selected) continue;
+
+                if (entry.getChangeType() != DiffEntry.ChangeType.ADD) pathsBefore.add(entry.getOldPath());
+                if (entry.getChangeType() != DiffEntry.ChangeType.DELETE) pathsAfter.add(entry.getNewPath());
+                if (entry.getChangeType() == DiffEntry.ChangeType.RENAME) {
+                    renamedFilesHint.put(entry.getOldPath(), entry.getNewPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the blobs of some files of a commit
+     * @return the directories of all Java files of the commit, which RefactoringMiner uses to match packages
+     */
+    private Set<String> findBlobs(RevCommit commit, Set<String> paths, Map<String, ObjectId> blobs) throws IOException {
+        Set<String> directories = new LinkedHashSet<>();
+        try (TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(PathSuffixFilter.create(".java"));
+            treeWalk.addTree(commit.getTree());
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (paths.contains(path)) blobs.put(path, treeWalk.getObjectId(0));
+                for (String directory = getDirectory(path); !directory.isEmpty(); directory = getDirectory(directory)) {
+                    if (!directories.add(directory)) break;
+                }
+            }
+        }
+        return directories;
+    }
+
+    private Map<String, String> readFileContents(Map<String, ObjectId> blobs) throws IOException {
+        Map<String, String> fileContents = new HashMap<>();
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (Map.Entry<String, ObjectId> blob : blobs.entrySet()) {
+                fileContents.put(blob.getKey(), RawParseUtils.decode(reader.open(blob.getValue()).getBytes()));
+            }
+        }
+        return fileContents;
+    }
+
+    private UMLModel createModel(Map<String, String> fileContents, Map<String, ObjectId> blobs,
+                                 Set<String> directories) {
+        UMLModel model = new UMLModel(directories);
+        fileContents.forEach((path, content) -> {
+            UMLModel fileModel = getFileModel(path, blobs.get(path), content);
+            fileModel.getClassList().forEach(model::addClass);
+            fileModel.getGeneralizationList().forEach(model::addGeneralization);
+            fileModel.getRealizationList().forEach(model::addRealization);
+            model.getCommentMap().putAll(fileModel.getCommentMap());
+            model.getTreeContextMap().putAll(fileModel.getTreeContextMap());
+        });
+        return model;
+    }
+
+    /**
+     * The model keeps the path of the file in its locations, so a blob is parsed again under another path
+     */
+    private UMLModel getFileModel(String path, ObjectId blob, String content) {
+        String key = blob.getName() + ":" + path;
+        FileModel fileModel = fileModels.get(key);
+        if (fileModel != null) return fileModel.model;
+
+        UMLModel model = new UMLModelASTReader(Collections.singletonMap(path, content), Collections.emptySet(),
+                false).getUmlModel();
+        fileModels.put(key, new FileModel(model, content.length()));
+        cachedChars += content.length();
+        Iterator<FileModel> eldest = fileModels.values().iterator();
+        while (cachedChars > maxCachedChars && fileModels.size() > 1) {
+            cachedChars -= eldest.next().length;
+            eldest.remove();
+        }
+        return model;
+    }
+
+    private static String getDirectory(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+}
@@ -4,22 +4,22 @@ import gr.uom.java.xmi.UMLClass;
 import gr.uom.java.xmi.UMLOperation;
 import gr.uom.java.xmi.diff.*;
 import org.eclipse.jgit.api.Git;
-import org.refactoringminer.api.GitHistoryRefactoringMiner;
 import org.refactoringminer.api.Refactoring;
-import org.refactoringminer.api.RefactoringHandler;
-import org.refactoringminer.rm1.GitHistoryRefactoringMinerImpl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
-public class RefactoringMinerUtils {
+public class RefactoringMinerUtils implements AutoCloseable {
 
     private Git git;
+    private RefactoringMinerSession session;
 
     public RefactoringMinerUtils(File repoDir) throws IOException {
         git = Git.open(repoDir);
+        session = new RefactoringMinerSession(git.getRepository());
     }
 
     private RefactoringMinerUtils() {
@@ -27,17 +27,25 @@ public class RefactoringMinerUtils {
     }
 
     public void detectAtCommit(String commitHash, List<Refactoring> refactoringsResult) throws Exception {
-        new GitUtils(git).gitReset();
-
-        GitHistoryRefactoringMiner miner = new GitHistoryRefactoringMinerImpl();
-        miner.detectAtCommit(git.getRepository(),
-                commitHash,
-                new RefactoringHandler() {
-                    @Override
-                    public void handle(String commitData, List<Refactoring> refactorings) {
-                        refactoringsResult.addAll(refactorings);
-                    }
-                });
+        detectAtCommit(commitHash, Collections.emptySet(), refactoringsResult);
+    }
+
+    /**
+     * Detects the refactorings of a commit, reusing the files that earlier commits of the repository parsed
+     * @param commitHash commit to analyze
+     * @param paths files of interest, all changed files are analyzed when it is empty
+     * @param refactoringsResult receives the refactorings
+     * @throws Exception thrown when RefactoringMiner fails
+     * @see RefactoringMinerSession
+     */
+    public void detectAtCommit(String commitHash, Set<String> paths, List<Refactoring> refactoringsResult)
+            throws Exception {
+        refactoringsResult.addAll(session.detectAtCommit(commitHash, paths));
+    }
+
+    @Override
+    public void close() {
+        git.close();
     }
 
     public void getRefactoringCodeRanges(Refactoring refactoring,
@@ -0,0 +1,165 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.refactoringminer.api.Refactoring;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A child JVM that runs RefactoringMiner for the main process. The parent sends a repository and a
+ * commit through the child's standard input and reads the detected refactorings back from its standard
+ * output; the child logs to standard error, which it shares with the parent. A child analyzes one
+ * commit at a time and is reused for any number of commits and repositories, until it is killed
+ * because a commit took too long or it ran out of memory.
+ */
+public class RefactoringMinerWorker implements AutoCloseable {
+
+    private static final int OPEN_REPOSITORIES = 4;
+
+    private final Process process;
+    private final DataOutputStream requests;
+    private final DataInputStream responses;
+
+    /**
+     * Starts a child JVM with the class path of the current one
+     * @param maxHeap maximum heap of the child, e.g. 2g
+     * @throws IOException thrown when the child cannot be started
+     */
+    public RefactoringMinerWorker(String maxHeap) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        this.process = new ProcessBuilder(java, "-Xmx" + maxHeap, "-XX:+ExitOnOutOfMemoryError",
+                "-cp", System.getProperty("java.class.path"), RefactoringMinerWorker.class.getName())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        this.responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    /**
+     * Analyzes a commit in the child and waits for the result
+     * @param repoDir repository of the commit
+     * @param commitHash commit to analyze
+     * @param paths files of interest, all changed files are analyzed when it is empty
+     * @return refactorings detected in the commit
+     * @throws IOException thrown when the child died or was killed before it answered
+     * @throws RefactoringMinerException thrown when RefactoringMiner failed on the commit, the child can be reused
+     */
+    public List<MinedRefactoring> detectAtCommit(File repoDir, String commitHash, Set<String> paths)
+            throws IOException, RefactoringMinerException {
+        MinedRefactoring.writeString(requests, repoDir.getAbsolutePath());
+        MinedRefactoring.writeString(requests, commitHash);
+        requests.writeInt(paths.size());
+        for (String path : paths) {
+            MinedRefactoring.writeString(requests, path);
+        }
+        requests.flush();
+
+        if (!responses.readBoolean()) {
+            throw new RefactoringMinerException(MinedRefactoring.readString(responses));
+        }
+        int size = responses.readInt();
+        List<MinedRefactoring> refactorings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            refactorings.add(MinedRefactoring.read(responses));
+        }
+        return refactorings;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Kills the child, a request that is waiting for it fails with an IOException
+     */
+    @Override
+    public void close() {
+        ProcessRunner.kill(process);
+    }
+
+    /**
+     * RefactoringMiner failed on a commit but the child is still usable
+     */
+    public static class RefactoringMinerException extends Exception {
+        public RefactoringMinerException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Entry point of the child, answers requests until its standard input is closed
+     */
+    public static void main(String[] args) throws IOException {
+        // Only the responses may go to standard output, everything that RefactoringMiner prints goes to standard error.
+        PrintStream output = System.out;
+        System.setOut(System.err);
+        DataInputStream requests = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(output));
+
+        Map<String, RefactoringMinerUtils> repositories = new LinkedHashMap<String, RefactoringMinerUtils>(
+                OPEN_REPOSITORIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RefactoringMinerUtils> eldest) {
+                if (size() <= OPEN_REPOSITORIES) return false;
+                eldest.getValue().close();
+                return true;
+            }
+        };
+
+        while (true) {
+            String repoDir, commitHash;
+            Set<String> paths = new HashSet<>();
+            try {
+                repoDir = MinedRefactoring.readString(requests);
+                commitHash = MinedRefactoring.readString(requests);
+                int size = requests.readInt();
+                for (int i = 0; i < size; i++) {
+                    paths.add(MinedRefactoring.readString(requests));
+                }
+            } catch (EOFException e) {
+                break;
+            }
+
+            List<MinedRefactoring> refactorings = new ArrayList<>();
+            try {
+                RefactoringMinerUtils refMinerUtils = repositories.get(repoDir);
+                if (refMinerUtils == null) {
+                    refMinerUtils = new RefactoringMinerUtils(new File(repoDir));
+                    repositories.put(repoDir, refMinerUtils);
+                }
+                List<Refactoring> detected = new ArrayList<>();
+                refMinerUtils.detectAtCommit(commitHash, paths, detected);
+                for (Refactoring refactoring : detected) {
+                    refactorings.add(MinedRefactoring.of(refactoring, refMinerUtils));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                responses.writeBoolean(false);
+                MinedRefactoring.writeString(responses, String.valueOf(e));
+                responses.flush();
+                continue;
+            }
+
+            responses.writeBoolean(true);
+            responses.writeInt(refactorings.size());
+            for (MinedRefactoring refactoring : refactorings) {
+                refactoring.write(responses);
+            }
+            responses.flush();
+        }
+        repositories.values().forEach(RefactoringMinerUtils::close);
+    }
+}
@@ -1,15 +1,17 @@
 package edu.unlv.evol.patchintegrator.utils;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Utils {
 
@@ -55,43 +57,38 @@ public class Utils {
     }
 
     /**
-     *
+     * Runs a command and returns its output. Standard error is drained concurrently and appended after
+     * standard output, the command is killed when it runs longer than {@link ProcessRunner#DEFAULT_TIMEOUT_MINUTES}.
      * @param dir git directory
      * @param commands list of git commands
-     * @return git command string
+     * @return git command output, standard output followed by standard error
+     * @see ProcessRunner
      */
     public static String runSystemCommand(String dir, String... commands) {
-        StringBuilder builder = new StringBuilder();
         try {
-//            if (verbose) {
-//                for (String command : commands) {
-//                    System.out.print(command + " ");
-//                }
-//                System.out.println();
-//            }
-            Runtime rt = Runtime.getRuntime();
-            Process proc = rt.exec(commands, null, new File(dir));
-
-            BufferedReader stdInput = new BufferedReader(new
-                    InputStreamReader(proc.getInputStream()));
-
-            BufferedReader stdError = new BufferedReader(new
-                    InputStreamReader(proc.getErrorStream()));
-
-            String s = null;
-            while ((s = stdInput.readLine()) != null) {
-                builder.append(s);
-                builder.append("\n");
-            }
+            return ProcessRunner.run(new File(dir), ProcessRunner.DEFAULT_TIMEOUT_MINUTES, TimeUnit.MINUTES, commands);
+        } catch (IOException | TimeoutException e) {
+            log(null, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "";
+    }
 
-            while ((s = stdError.readLine()) != null) {
-                builder.append(s);
-                builder.append("\n");
-            }
+    /**
+     * Deletes a directory with all of its content, missing directories are ignored
+     * @param directory the directory to delete
+     */
+    public static void deleteDirectory(File directory) {
+        if (!directory.exists()) return;
+        try {
+            Files.walk(directory.getAbsoluteFile().toPath())
+                    .sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println(e.getMessage());
         }
-        return builder.toString();
     }
 
     /**
@@ -82,9 +82,11 @@ CREATE TABLE IF NOT EXISTS `patch_integrator`.`refactoring_commit` (
   `id` INT NOT NULL AUTO_INCREMENT,
   `commit_hash` CHAR(40) NOT NULL,
   `is_done` TINYINT(1) NULL DEFAULT 0,
+  `mined_paths` TEXT NULL,
   `project_id` INT NOT NULL,
   PRIMARY KEY (`id`, `project_id`, `commit_hash`),
   INDEX `fk_refactoring_commit_project1_idx` (`project_id` ASC),
+  INDEX `refactoring_commit_hash_idx` (`commit_hash` ASC),
   CONSTRAINT `fk_refactoring_commit_project1`
     FOREIGN KEY (`project_id`)
     REFERENCES `patch_integrator`.`project` (`id`)
@@ -204,6 +206,7 @@ CREATE TABLE IF NOT EXISTS `patch_integrator`.`conflicting_region_history` (
   `timestamp` INT NULL,
   PRIMARY KEY (`id`, `conflicting_region_id`, `conflicting_java_file_id`, `merge_commit_id`, `project_id`, `patch_id`),
   INDEX `fk_conflicting_region_history_conflicting_region1_idx` (`conflicting_region_id` ASC, `conflicting_java_file_id` ASC, `merge_commit_id` ASC, `project_id` ASC, `patch_id` ASC),
+  INDEX `conflicting_region_history_project_commit_idx` (`project_id` ASC, `commit_hash` ASC),
   CONSTRAINT `fk_conflicting_region_history_conflicting_region1`
     FOREIGN KEY (`conflicting_region_id` , `conflicting_java_file_id` , `merge_commit_id` , `project_id`, `patch_id`)
     REFERENCES `patch_integrator`.`conflicting_region` (`id` , `conflicting_java_file_id` , `merge_commit_id` , `project_id`, `patch_id`)
@@ -0,0 +1,184 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cherry-picks commits onto commits that change or rename the same file. Every expected outcome is the one
+ * of git cherry-pick on the same commits.
+ */
+public class CherryPickEvaluatorTest {
+
+    private static final String FILE = lines("line", 1, 30);
+    private static final String OTHER_FILE = lines("other", 1, 30);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Repository repository;
+    private ObjectInserter inserter;
+    private RevCommit base;
+
+    @Before
+    public void setUp() throws IOException {
+        repository = new FileRepositoryBuilder().setGitDir(temporaryFolder.newFolder("repository.git"))
+                .setBare().build();
+        repository.create(true);
+        inserter = repository.newObjectInserter();
+        base = commit(files("A.java", FILE), null);
+    }
+
+    @After
+    public void tearDown() {
+        inserter.close();
+        repository.close();
+    }
+
+    @Test
+    public void renameAndDeleteIsRenameDeleteConflict() throws IOException {
+        CherryPickEvaluator.Result result = evaluate(files("B.java", FILE), files());
+
+        assertTrue(result.isConflicting());
+        assertEquals(Collections.singletonMap("B.java", CherryPickEvaluator.ConflictType.RENAME_DELETE),
+                result.getConflicts());
+    }
+
+    @Test
+    public void deleteAndRenameIsRenameDeleteConflict() throws IOException {
+        CherryPickEvaluator.Result result = evaluate(files(), files("B.java", FILE));
+
+        assertTrue(result.isConflicting());
+        assertEquals(Collections.singletonMap("B.java", CherryPickEvaluator.ConflictType.RENAME_DELETE),
+                result.getConflicts());
+    }
+
+    @Test
+    public void differentRenamesAreRenameRenameConflict() throws IOException {
+        CherryPickEvaluator.Result result = evaluate(files("B.java", FILE), files("C.java", FILE));
+
+        assertTrue(result.isConflicting());
+        assertEquals(Collections.singletonMap("B.java", CherryPickEvaluator.ConflictType.RENAME_RENAME),
+                result.getConflicts());
+    }
+
+    @Test
+    public void renameAndAddIsRenameAddConflict() throws IOException {
+        CherryPickEvaluator.Result result = evaluate(files("B.java", FILE), files("A.java", FILE, "B.java", OTHER_FILE));
+
+        assertTrue(result.isConflicting());
+        assertEquals(Collections.singletonMap("B.java", CherryPickEvaluator.ConflictType.RENAME_ADD),
+                result.getConflicts());
+        assertTrue(result.getConflictRegions().isEmpty());
+    }
+
+    @Test
+    public void sameRenamesAreMergedWithTheirBase() throws IOException {
+        CherryPickEvaluator.Result result = evaluate(files("B.java", FILE.replace("line 1\n", "head 1\n")),
+                files("B.java", FILE.replace("line 30\n", "picked 30\n")));
+
+        assertFalse(result.isConflicting());
+    }
+
+    @Test
+    public void renameAndModifyIsMergedIntoTheRenamedFile() throws IOException {
+        assertFalse(evaluate(files("B.java", FILE), files("A.java", FILE.replace("line 5\n", "picked 5\n")))
+                .isConflicting());
+
+        CherryPickEvaluator.Result result = evaluate(files("B.java", FILE.replace("line 5\n", "head 5\n")),
+                files("A.java", FILE.replace("line 5\n", "picked 5\n")));
+        assertEquals(Collections.singletonMap("B.java", CherryPickEvaluator.ConflictType.CONTENT),
+                result.getConflicts());
+        CherryPickEvaluator.ConflictRegion region = result.getConflictRegions().get("B.java").get(0);
+        assertEquals("B.java", region.oursPath);
+        assertEquals("A.java", region.theirsPath);
+        assertEquals(5, region.baseStartLine);
+        assertEquals(1, region.baseLength);
+    }
+
+    @Test
+    public void baseRangeLeavesOutLinesBothSidesAgreeOn() throws IOException {
+        CherryPickEvaluator.Result result = evaluate(
+                files("A.java", FILE.replace("line 5\nline 6\n", "same 5\nhead 6\n")),
+                files("A.java", FILE.replace("line 5\nline 6\n", "same 5\npicked 6\npicked 7\n")));
+
+        CherryPickEvaluator.ConflictRegion region = result.getConflictRegions().get("A.java").get(0);
+        assertEquals(6, region.baseStartLine);
+        assertEquals(1, region.baseLength);
+        assertEquals(6, region.oursStartLine);
+        assertEquals(1, region.oursLength);
+        assertEquals(6, region.theirsStartLine);
+        assertEquals(2, region.theirsLength);
+    }
+
+    private CherryPickEvaluator.Result evaluate(Map<String, String> headFiles, Map<String, String> pickedFiles)
+            throws IOException {
+        RevCommit head = commit(headFiles, base);
+        RevCommit picked = commit(pickedFiles, base);
+        return new CherryPickEvaluator(repository).evaluate(head, picked);
+    }
+
+    private RevCommit commit(Map<String, String> files, RevCommit parent) throws IOException {
+        TreeFormatter tree = new TreeFormatter();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            tree.append(file.getKey(), FileMode.REGULAR_FILE,
+                    inserter.insert(Constants.OBJ_BLOB, file.getValue().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        PersonIdent author = new PersonIdent("Author", "author@example.com");
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(inserter.insert(tree));
+        if (parent != null) commit.setParentId(parent);
+        commit.setAuthor(author);
+        commit.setCommitter(author);
+        commit.setMessage("Commit\n");
+        ObjectId commitId = inserter.insert(commit);
+        inserter.flush();
+        try (RevWalk walk = new RevWalk(repository)) {
+            return walk.parseCommit(commitId);
+        }
+    }
+
+    /**
+     * @return files keyed by path, sorted like the entries of a tree
+     */
+    private static Map<String, String> files(String... pathsAndContents) {
+        Map<String, String> files = new TreeMap<>();
+        for (int i = 0; i < pathsAndContents.length; i += 2) {
+            files.put(pathsAndContents[i], pathsAndContents[i + 1]);
+        }
+        files.put("O.java", "other\n");
+        return files;
+    }
+
+    private static String lines(String prefix, int first, int last) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = first; i <= last; i++) {
+            lines.append(prefix).append(' ').append(i).append('\n');
+        }
+        return lines.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Schedules requests against a local HTTP server that stands in for the GitHub API and rejects or limits
+ * the requests of some tokens
+ */
+public class GitHubSchedulerTest {
+
+    private static final String SECONDARY_RATE_LIMIT = "secondary";
+    private static final String CORE_RATE_LIMIT = "core";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final long resetSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 3600;
+    // Per token: number of user requests, how its user requests are rejected and its core quota.
+    private final Map<String, AtomicInteger> userRequests = new ConcurrentHashMap<>();
+    private final Map<String, String> rejections = new ConcurrentHashMap<>();
+    private final Map<String, Integer> remaining = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void secondaryRateLimitPausesTheClientForItsRetryAfter() throws IOException {
+        rejections.put("a", SECONDARY_RATE_LIMIT);
+        GitHubScheduler scheduler = scheduler("a");
+
+        assertEquals("user0", getUser(scheduler, 0));
+        assertEquals(2, userRequests.get("a").get());
+        // The core window resets in an hour, but the client only waits for the Retry-After of one second.
+        assertTrue(scheduler.getWaitMillis() >= 500 && scheduler.getWaitMillis() < TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Test
+    public void coreRateLimitUsesTheClientUpUntilItsReset() throws IOException {
+        rejections.put("a", CORE_RATE_LIMIT);
+        GitHubScheduler scheduler = scheduler("a", "b");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("user" + i, getUser(scheduler, i));
+        }
+        assertEquals(1, userRequests.get("a").get());
+        assertEquals(3, userRequests.get("b").get());
+        assertEquals(0, scheduler.getWaitMillis());
+    }
+
+    @Test
+    public void clientWithLowQuotaIsLeftAlone() throws IOException {
+        remaining.put("a", 5);
+        GitHubScheduler scheduler = scheduler("a", "b");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("user" + i, getUser(scheduler, i));
+        }
+        assertEquals(1, userRequests.get("a").get());
+        assertEquals(2, userRequests.get("b").get());
+    }
+
+    /**
+     * Every request reads another user, the clients cache the users they read
+     */
+    private static String getUser(GitHubScheduler scheduler, int user) throws IOException {
+        return scheduler.schedule(gitHub -> gitHub.getUser("user" + user).getLogin());
+    }
+
+    private GitHubScheduler scheduler(String... tokens) throws IOException {
+        File properties = temporaryFolder.newFile(GitHubScheduler.PROPERTIES_FILE);
+        Files.write(properties.toPath(), ("Endpoint=http://localhost:" + server.getAddress().getPort() + "\n"
+                + "OAuthToken=" + String.join(",", tokens) + "\n").getBytes(StandardCharsets.UTF_8));
+        return GitHubScheduler.fromProperties(properties.getPath());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String token = authorization == null ? "" : authorization.substring(authorization.indexOf(' ') + 1);
+        int quota = remaining.getOrDefault(token, 4000);
+
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/user")) {
+            // The clients check their token when they are built.
+            respond(exchange, 200, "{\"login\":\"" + token + "\",\"id\":1}");
+            return;
+        }
+        if (path.equals("/rate_limit")) {
+            String core = String.format("{\"limit\":5000,\"remaining\":%d,\"reset\":%d}", quota, resetSeconds);
+            String other = String.format("{\"limit\":30,\"remaining\":30,\"reset\":%d}", resetSeconds);
+            respond(exchange, 200, String.format("{\"resources\":{\"core\":%s,\"search\":%s,\"graphql\":%s,"
+                    + "\"integration_manifest\":%s},\"rate\":%s}", core, other, other, other, core));
+            return;
+        }
+
+        userRequests.computeIfAbsent(token, key -> new AtomicInteger()).incrementAndGet();
+        exchange.getResponseHeaders().add("X-RateLimit-Limit", "5000");
+        exchange.getResponseHeaders().add("X-RateLimit-Reset", Long.toString(resetSeconds));
+        String rejection = rejections.get(token);
+        if (CORE_RATE_LIMIT.equals(rejection)) {
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", "0");
+            respond(exchange, 403, "{\"message\":\"API rate limit exceeded\"}");
+        } else if (SECONDARY_RATE_LIMIT.equals(rejection)) {
+            rejections.remove(token);
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", Integer.toString(quota));
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            respond(exchange, 403, "{\"message\":\"You have exceeded a secondary rate limit\"}");
+        } else {
+            exchange.getResponseHeaders().add("X-RateLimit-Remaining", Integer.toString(quota));
+            String login = path.substring(path.lastIndexOf('/') + 1);
+            respond(exchange, 200, "{\"login\":\"" + login + "\",\"id\":1}");
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
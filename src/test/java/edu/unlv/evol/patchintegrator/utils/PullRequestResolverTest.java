@@ -0,0 +1,129 @@
+package edu.unlv.evol.patchintegrator.utils;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resolves pull requests from a bare repository whose commits and pull refs are written directly, like
+ * a source mirror with refs/pull/&lt;n&gt;/head
+ */
+public class PullRequestResolverTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Repository repository;
+    private ObjectInserter inserter;
+
+    @Before
+    public void setUp() throws IOException {
+        repository = new FileRepositoryBuilder().setGitDir(temporaryFolder.newFolder("upstream.git"))
+                .setBare().build();
+        repository.create(true);
+        inserter = repository.newObjectInserter();
+    }
+
+    @After
+    public void tearDown() {
+        inserter.close();
+        repository.close();
+    }
+
+    @Test
+    public void resolvesMergeSquashAndFastForwardMerges() throws IOException {
+        ObjectId root = commit("Initial commit");
+        ObjectId feature = commit("Add feature", root);
+        ObjectId merge = commit("Merge pull request #1 from someone/feature", root, feature);
+        ObjectId squash = commit("Fix the parser (#2)", merge);
+        ObjectId fastForward = commit("Update the documentation", squash);
+        setRef("refs/heads/master", fastForward);
+        setRef("refs/pull/1/head", feature);
+        setRef("refs/pull/2/head", commit("Fix the parser", merge));
+        setRef("refs/pull/3/head", fastForward);
+
+        Map<Integer, String> expected = new LinkedHashMap<>();
+        expected.put(1, merge.getName());
+        expected.put(2, squash.getName());
+        expected.put(3, fastForward.getName());
+        assertEquals(expected, new PullRequestResolver(repository).resolve(1, 2, 3));
+    }
+
+    @Test
+    public void leavesUnresolvedPullRequestsToGitHub() throws IOException {
+        ObjectId root = commit("Initial commit");
+        // A rebase merge copies the commits of the pull request, so neither its subject nor its head is found.
+        ObjectId rebased = commit("Rebased change", root);
+        setRef("refs/heads/master", rebased);
+        ObjectId head = commit("Original change", root);
+        setRef("refs/pull/4/head", head);
+        setRef("refs/pull/4/merge", commit("Merge " + head.getName() + " into " + rebased.getName(), rebased, head));
+
+        assertTrue(new PullRequestResolver(repository).resolve(4, 5).isEmpty());
+    }
+
+    @Test
+    public void doesNotResolveTheHeadOfAMergeWithACustomSubject() throws IOException {
+        ObjectId root = commit("Initial commit");
+        ObjectId head = commit("Add feature", root);
+        // The head is merged into the default branch, but the merge commit is the commit that merged it.
+        setRef("refs/heads/master", commit("Add the feature of someone", root, head));
+        setRef("refs/pull/7/head", head);
+
+        assertTrue(new PullRequestResolver(repository).resolve(7).isEmpty());
+    }
+
+    @Test
+    public void prefersTheNewestCommitOfTheDefaultBranch() throws IOException {
+        ObjectId root = commit("Initial commit");
+        ObjectId first = commit("Fix the parser (#6)", root);
+        ObjectId second = commit("Fix the parser again (#6)", first);
+        setRef("refs/heads/master", second);
+
+        assertEquals(second.getName(), new PullRequestResolver(repository).resolve(6).get(6));
+    }
+
+    private ObjectId commit(String message, ObjectId... parents) throws IOException {
+        // Every commit gets its own tree, so that commits with the same parents differ.
+        TreeFormatter tree = new TreeFormatter();
+        tree.append("file.txt", FileMode.REGULAR_FILE,
+                inserter.insert(Constants.OBJ_BLOB, message.getBytes(StandardCharsets.UTF_8)));
+
+        PersonIdent author = new PersonIdent("Author", "author@example.com");
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(inserter.insert(tree));
+        commit.setParentIds(parents);
+        commit.setAuthor(author);
+        commit.setCommitter(author);
+        commit.setMessage(message + "\n");
+        ObjectId commitId = inserter.insert(commit);
+        inserter.flush();
+        return commitId;
+    }
+
+    private void setRef(String name, ObjectId commitId) throws IOException {
+        RefUpdate refUpdate = repository.updateRef(name);
+        refUpdate.setNewObjectId(commitId);
+        refUpdate.forceUpdate();
+    }
+}